@@ -0,0 +1,58 @@
+/*
+ * Copyright 2011 Ronald Kurniawan.
+ *
+ * This file is part of CodeTraq.
+ *
+ * CodeTraq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CodeTraq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CodeTraq. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.mobid.codetraq;
+
+/**
+ * Enumeration containing the ways changes to the database can be committed.
+ * Every commit flushes the database files to disk, which is slow on some disks,
+ * so committing several changes together saves time at the cost of losing the
+ * latest changes if the daemon dies.
+ *
+ * @author Ronald Kurniawan
+ * @version 0.1
+ */
+public enum DurabilityMode {
+
+	/**
+	 * Every change is committed on its own.
+	 */
+	OPERATION("op"),
+	/**
+	 * Changes waiting for the writer are committed together.
+	 */
+	BATCH("batch"),
+	/**
+	 * Changes are collected for a short time and committed together.
+	 */
+	GROUP("group");
+
+	private final String _shortName;
+
+	DurabilityMode(String shortName) {
+		_shortName = shortName;
+	}
+
+	/**
+	 * This is a getter method to return the name of a mode as used in the configuration file.
+	 * @return
+	 */
+	public String getShortName() {
+		return _shortName;
+	}
+}
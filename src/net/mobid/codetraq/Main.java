@@ -21,22 +21,27 @@ package net.mobid.codetraq;
 import java.io.IOException;
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import net.mobid.codetraq.persistence.ServerDTO;
+import net.mobid.codetraq.persistence.SettingsDTO;
 import net.mobid.codetraq.persistence.UserDTO;
-import net.mobid.codetraq.runnables.GitChecker;
+import net.mobid.codetraq.runnables.CheckerExecutor;
+import net.mobid.codetraq.runnables.HookListener;
+import net.mobid.codetraq.runnables.MaintenanceJob;
 import net.mobid.codetraq.runnables.MessageTracker;
+import net.mobid.codetraq.runnables.RepositoryRegistry;
+import net.mobid.codetraq.runnables.RevisionDispatcher;
 import net.mobid.codetraq.runnables.ServerTracker;
-import net.mobid.codetraq.runnables.SvnChecker;
+import net.mobid.codetraq.runnables.SvnSessionPool;
 import net.mobid.codetraq.talkers.EmailTalker;
 import net.mobid.codetraq.utils.DbUtility;
 import net.mobid.codetraq.utils.LogService;
 import net.mobid.codetraq.utils.PasswordProcessor;
+import net.mobid.codetraq.utils.SubscriptionIndex;
 import net.mobid.codetraq.utils.Utilities;
 import net.mobid.codetraq.talkers.MSNTalker;
 import net.mobid.codetraq.talkers.XMPPTalker;
@@ -54,17 +59,25 @@ import org.xml.sax.SAXException;
  */
 public class Main {
 
-	private static boolean _isRunning = true;
 	private static ITalker _xmppTalker = null;
 	private static ITalker _msnTalker = null;
 	private static ITalker _mailTalker = null;
 	private static Document _configuration = null;
 	private static List<UserDTO> _users = null;
 	private static List<ServerDTO> _servers = null;
+	private static SettingsDTO _settings = null;
+	private static SubscriptionIndex _subscriptions = null;
+	private static CheckerExecutor _checkers = null;
+	private static HookListener _hookListener = null;
+	private static SvnSessionPool _svnSessions = null;
+	private static RepositoryRegistry _repositories = null;
 	private volatile Thread _messageChecker = null;
 	private volatile Thread _serverChecker = null;
+	private volatile Thread _maintenanceChecker = null;
 	private static DbUtility _traqdb = null;
-	private final int USER_UPDATE_IN_MINUTES = 8;
+
+	// how long the shutdown waits for each tracker thread before closing the database
+	private final int TRACKER_STOP_WAIT_IN_SECONDS = 30;
 
 	/**
 	 * Read and parse CodeTraq configuration file (ctraq.xml) in current directory.
@@ -113,6 +126,18 @@ public class Main {
 		return _servers;
 	}
 
+	/**
+	 * Returns the daemon settings in the configuration file.
+	 * @return a <code>SettingsDTO</code> object; default values are used for
+	 * settings that are not specified.
+	 */
+	public SettingsDTO getSettings() {
+		if (_settings == null) {
+			_settings = new SettingsDTO();
+		}
+		return _settings;
+	}
+
 	public static void main(String[] args) {
 		Main m = new Main();
 	}
@@ -139,7 +164,7 @@ public class Main {
 					+ "the configuration file (ctraq.xml) with correct values and restart the daemon.%n");
 			return;
 		}
-		_traqdb = new DbUtility();
+		_traqdb = new DbUtility(getSettings());
 		ShutdownHook hook = new ShutdownHook();
 		Runtime.getRuntime().addShutdownHook(hook);
 		System.out.printf("CodeTraq started on %s%n", Utilities.getFormattedTime());
@@ -253,6 +278,96 @@ public class Main {
 					}
 				}
 			}
+			// get daemon settings, all of them are optional
+			NodeList settings = getConfiguration().getElementsByTagName("settings");
+			if (settings.getLength() > 0) {
+				Node setting = settings.item(0);
+				getSettings().setWorkers(Utilities.getIntAttribute(setting, "workers",
+						getSettings().getWorkers(), 1));
+				getSettings().setQueueSize(Utilities.getIntAttribute(setting, "queue",
+						getSettings().getQueueSize(), 1));
+				getSettings().setMinInterval(Utilities.getIntAttribute(setting, "mininterval",
+						getSettings().getMinInterval(), 1));
+				getSettings().setMaxInterval(Utilities.getIntAttribute(setting, "maxinterval",
+						getSettings().getMaxInterval(), 1));
+				if (getSettings().getMinInterval() > getSettings().getMaxInterval()) {
+					SettingsDTO defaults = new SettingsDTO();
+					System.out.printf("Attribute mininterval (%d) is larger than maxinterval (%d), using default values %d and %d. Please review your configuration file.%n",
+							getSettings().getMinInterval(), getSettings().getMaxInterval(),
+							defaults.getMinInterval(), defaults.getMaxInterval());
+					getSettings().setMinInterval(defaults.getMinInterval());
+					getSettings().setMaxInterval(defaults.getMaxInterval());
+				}
+				getSettings().setJitter(Utilities.getIntAttribute(setting, "jitter",
+						getSettings().getJitter()));
+				getSettings().setHostConnections(Utilities.getIntAttribute(setting, "hostconnections",
+						getSettings().getHostConnections(""), 1));
+				getSettings().setSvnBatch(Utilities.getIntAttribute(setting, "svnbatch",
+						getSettings().getSvnBatch(), 1));
+				getSettings().setGitBatch(Utilities.getIntAttribute(setting, "gitbatch",
+						getSettings().getGitBatch(), 1));
+				getSettings().setSvnSessions(Utilities.getIntAttribute(setting, "svnsessions",
+						getSettings().getSvnSessions()));
+				getSettings().setSvnIdle(Utilities.getIntAttribute(setting, "svnidle",
+						getSettings().getSvnIdle()));
+				getSettings().setGitIdle(Utilities.getIntAttribute(setting, "gitidle",
+						getSettings().getGitIdle()));
+				getSettings().setGitMaintenance(Utilities.getIntAttribute(setting, "gitmaintenance",
+						getSettings().getGitMaintenance()));
+				getSettings().setGitMaxPacks(Utilities.getIntAttribute(setting, "gitmaxpacks",
+						getSettings().getGitMaxPacks()));
+				getSettings().setGitMaxLoose(Utilities.getIntAttribute(setting, "gitmaxloose",
+						getSettings().getGitMaxLoose()));
+				getSettings().setGitRepackers(Utilities.getIntAttribute(setting, "gitrepackers",
+						getSettings().getGitRepackers()));
+				getSettings().setHookPort(Utilities.getIntAttribute(setting, "hookport",
+						getSettings().getHookPort()));
+				Node hookHost = setting.getAttributes().getNamedItem("hookhost");
+				if (hookHost != null && hookHost.getTextContent().length() > 0) {
+					getSettings().setHookHost(hookHost.getTextContent());
+				}
+				Node hookToken = setting.getAttributes().getNamedItem("hooktoken");
+				if (hookToken != null && hookToken.getTextContent().length() > 0) {
+					getSettings().setHookToken(hookToken.getTextContent());
+				}
+				getSettings().setGroupCommit(Utilities.getIntAttribute(setting, "groupcommit",
+						getSettings().getGroupCommit(), 1));
+				Node durability = setting.getAttributes().getNamedItem("durability");
+				if (durability != null) {
+					DurabilityMode durabilityMode = null;
+					for (DurabilityMode mode : DurabilityMode.values()) {
+						if (mode.getShortName().equalsIgnoreCase(durability.getTextContent().trim())) {
+							durabilityMode = mode;
+						}
+					}
+					if (durabilityMode == null) {
+						System.out.printf("Unknown durability %s, using default value %s. Please review your configuration file.%n",
+								durability.getTextContent(), getSettings().getDurability().getShortName());
+					} else {
+						getSettings().setDurability(durabilityMode);
+					}
+				}
+				Node schedule = setting.getAttributes().getNamedItem("schedule");
+				if (schedule != null) {
+					getSettings().setSpreadSchedule(schedule.getTextContent().equalsIgnoreCase("spread"));
+				}
+			}
+			// connection limits for particular hosts
+			NodeList hosts = getConfiguration().getElementsByTagName("host");
+			for (int i = 0; i < hosts.getLength(); i++) {
+				Node host = hosts.item(i);
+				if (!Utilities.checkNode("host authority", host.getAttributes().getNamedItem("authority"))
+						|| !Utilities.checkNode("host connections", host.getAttributes().getNamedItem("connections"))) {
+					System.out.printf("Please review your configuration file.%n");
+					return false;
+				}
+				String authority = host.getAttributes().getNamedItem("authority").getTextContent();
+				if (!Utilities.checkValue("host authority", authority)) {
+					return false;
+				}
+				getSettings().setHostConnections(authority.trim(), Utilities.getIntAttribute(host, "connections",
+						getSettings().getHostConnections(""), 1));
+			}
 			// get list of users and servers
 			NodeList users = getConfiguration().getElementsByTagName("user");
 			for (int i = 0; i < users.getLength(); i++) {
@@ -310,6 +425,17 @@ public class Main {
 					return false;
 				}
 				String owner = server.getAttributes().getNamedItem("owner").getTextContent();
+				List<String> owners = new ArrayList<String>();
+				for (String id : owner.split(",")) {
+					if (id.trim().length() > 0) {
+						owners.add(id.trim());
+					}
+				}
+				if (owners.isEmpty()) {
+					System.out.printf("Server %s does not have an owner. Please review your configuration file.%n",
+							server.getAttributes().getNamedItem("address").getTextContent());
+					return false;
+				}
 				String shortName = server.getAttributes().getNamedItem("sname").getTextContent();
 				String sAddress = server.getAttributes().getNamedItem("address").getTextContent();
 				String sType = server.getAttributes().getNamedItem("type").getTextContent();
@@ -323,15 +449,9 @@ public class Main {
 						|| !Utilities.checkValue("server password", sPassword)) {
 					return false;
 				}
-				// need to check that server's short name is unique, as we need it to
-				// create git local repo (if type is 'git')
-				if (!Utilities.checkServerShortName(getServers(), shortName)) {
-					System.out.printf("Server short name must be unique. '%s' is already used for another server.%n",
-							shortName);
-					return false;
-				}
 				// if this is a GIT repo, we need a branch name
 				String sBranch = null;
+				List<String> branches = new ArrayList<String>();
 				if (sType.equalsIgnoreCase("git")) {
 					if (!Utilities.checkNode("git branch", server.getAttributes().getNamedItem("branch"))) {
 						System.out.printf("GIT server %s does not have a specified branch. Please review your configuration file.%n",
@@ -342,15 +462,67 @@ public class Main {
 					if (!Utilities.checkValue("git branch", sBranch)) {
 						return false;
 					}
+					// several branches may be listed, the first one is checked out
+					// in the local copy and may not be a pattern
+					for (String b : sBranch.split(",")) {
+						b = b.trim();
+						if (b.startsWith("refs/heads/")) {
+							b = b.substring("refs/heads/".length());
+						}
+						if (b.length() > 0) {
+							branches.add(b);
+						}
+					}
+					if (branches.isEmpty() || branches.get(0).endsWith("*")) {
+						System.out.printf("The first branch of GIT server %s must be a branch name, not a pattern. "
+								+ "Please review your configuration file.%n", sAddress);
+						return false;
+					}
+				}
+				// several users may subscribe to the same server, either by listing
+				// several owners or with several server elements for one address.
+				// They all share one ServerDTO, so the server is only polled once.
+				ServerDTO existing = getServerByAddress(sAddress);
+				if (existing != null) {
+					if (!existing.getServerType().name().equalsIgnoreCase(sType)
+							|| (sBranch != null && !branches.equals(existing.getBranchPatterns()))) {
+						System.out.printf("Server %s is configured more than once with a different type or branch. "
+								+ "Please review your configuration file.%n", sAddress);
+						return false;
+					}
+					for (String id : owners) {
+						existing.addSubscriberId(id);
+					}
+					continue;
+				}
+				// need to check that server's short name is unique, as we need it to
+				// create git local repo (if type is 'git')
+				if (!Utilities.checkServerShortName(getServers(), shortName)) {
+					System.out.printf("Server short name must be unique. '%s' is already used for another server.%n",
+							shortName);
+					return false;
 				}
 				ServerDTO s = new ServerDTO();
-				s.setOwnerId(owner);
+				for (String id : owners) {
+					if (s.getOwnerId() == null) {
+						s.setOwnerId(id);
+					} else {
+						s.addSubscriberId(id);
+					}
+				}
 				s.setShortName(shortName);
 				if (sType.equalsIgnoreCase("svn")) {
 					s.setServerType(VersionControlType.SVN);
 				} else if (sType.equalsIgnoreCase("git")) {
 					s.setServerType(VersionControlType.GIT);
-					s.setServerBranch(sBranch);
+					s.setServerBranch(branches.get(0));
+					for (String b : branches) {
+						s.addBranchPattern(b);
+					}
+					Node mirror = server.getAttributes().getNamedItem("mirror");
+					s.setBareMirror(mirror != null && mirror.getTextContent().equalsIgnoreCase("bare"));
+					Node singleBranch = server.getAttributes().getNamedItem("singlebranch");
+					s.setSingleBranch(singleBranch != null && singleBranch.getTextContent().equalsIgnoreCase("true"));
 				}
 				s.setServerAddress(sAddress);
 				s.setServerUsername(sUsername);
@@ -364,8 +536,24 @@ public class Main {
 		return true;
 	}
 
+	/*
+	 * Search the internal list _servers for a Server with specified address.
+	 * @param address - server URL
+	 * @return a <code>ServerDTO</code> object, or <code>null</code> if not found.
+	 */
+	private ServerDTO getServerByAddress(String address) {
+		for (ServerDTO s : getServers()) {
+			if (s.getServerAddress().equals(address)) {
+				return s;
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Starts all the runnables that monitor the servers and notify the users.
+	 * Users are notified by the <code>RevisionDispatcher</code> as soon as the
+	 * <code>ServerTracker</code> finds a new revision.
 	 */
 	public final void run() {
 		MessageTracker tracker = new MessageTracker(_traqdb);
@@ -374,72 +562,144 @@ public class Main {
 		tracker.setEmailTalker(_mailTalker);
 		_messageChecker = new Thread(tracker);
 		_messageChecker.start();
-		ServerTracker st = new ServerTracker(_traqdb, _servers);
+		CheckerExecutor checkers = new CheckerExecutor(getSettings());
+		_checkers = checkers;
+		_subscriptions = new SubscriptionIndex(_servers, _users);
+		_svnSessions = new SvnSessionPool(getSettings());
+		_repositories = new RepositoryRegistry(getSettings().getGitIdle() * 60 * 1000L);
+		RevisionDispatcher dispatcher = new RevisionDispatcher(_traqdb, _subscriptions);
+		ServerTracker st = new ServerTracker(_traqdb, _servers, getSettings(), checkers, dispatcher,
+				_svnSessions, _repositories);
+		// notify users about revisions they missed while we were down
+		dispatcher.catchUp();
 		_serverChecker = new Thread(st);
 		_serverChecker.start();
-		while (_isRunning) {
-			for (int i = 0; i < _servers.size(); i++) {
-				ServerDTO s = _servers.get(i);
-				UserDTO user = getUserById(s.getOwnerId());
-				if (user == null) {
-					System.out.printf("Cannot find user %s%n.", s.getOwnerId());
-					LogService.writeMessage("Cannot find user " + s.getOwnerId());
-					continue;
-				}
-				if (s.getServerType() == VersionControlType.SVN) {
-					SvnChecker svnChecker = new SvnChecker(s, user, _traqdb);
-					Thread t = new Thread(svnChecker);
-					t.start();
-				} else if (s.getServerType() == VersionControlType.GIT) {
-					GitChecker gitChecker = new GitChecker(s, user, _traqdb);
-					Thread t = new Thread(gitChecker);
-					t.start();
-				}
-			}
+		MaintenanceJob maintenance = null;
+		if (getSettings().getGitMaintenance() > 0) {
+			maintenance = new MaintenanceJob(_servers, st, checkers, _repositories, getSettings());
+			_maintenanceChecker = new Thread(maintenance);
+			_maintenanceChecker.setPriority(Thread.MIN_PRIORITY);
+			_maintenanceChecker.start();
+		}
+		if (getSettings().getHookPort() > 0) {
+			HookListener listener = new HookListener(st, getSettings().getHookToken());
+			listener.setMaintenanceJob(maintenance);
+			listener.setDatabase(_traqdb);
+			listener.setCheckerExecutor(checkers);
 			try {
-				Thread.sleep(USER_UPDATE_IN_MINUTES * 60 * 1000);
-			} catch (InterruptedException ex) {
+				listener.start(getSettings().getHookHost(), getSettings().getHookPort());
+				_hookListener = listener;
+			} catch (IOException ex) {
+				System.out.printf("Cannot listen for repository hooks on port %d, relying on polling only.%n",
+						getSettings().getHookPort());
 				LogService.writeLog(Level.SEVERE, ex);
 			}
 		}
 	}
 
-	/*
-	 * Search the internal list _users for a User with specified ID.
-	 * @param id - user specified ID
-	 * @return a <code>UserDTO</code> object.
-	 */
-	private UserDTO getUserById(String id) {
-		UserDTO key = new UserDTO();
-		key.setId(id);
-		Collections.sort(_users);
-		int x = Collections.binarySearch(_users, key);
-		if (x < 0) {
-			return null;
-		}
-		return _users.get(x);
-	}
-
 	/*
 	 * Stops the message checker thread. Should only be called during shutdown.
+	 * @return the stopped thread, or <code>null</code> if it was not running
 	 */
-	private synchronized void messageTrackerStop() {
+	private synchronized Thread messageTrackerStop() {
 		Thread tmpChecker = _messageChecker;
 		_messageChecker = null;
 		if (tmpChecker != null) {
 			tmpChecker.interrupt();
 		}
+		return tmpChecker;
 	}
 
 	/*
 	 * Stops the server tracker thread. Should only be called during shutdown.
+	 * @return the stopped thread, or <code>null</code> if it was not running
 	 */
-	private synchronized void serverTrackerStop() {
+	private synchronized Thread serverTrackerStop() {
 		Thread tmpChecker = _serverChecker;
 		_serverChecker = null;
 		if (tmpChecker != null) {
 			tmpChecker.interrupt();
 		}
+		return tmpChecker;
+	}
+
+	/*
+	 * Waits up to TRACKER_STOP_WAIT_IN_SECONDS for a stopped thread to finish.
+	 * Should only be called during shutdown.
+	 * @param thread - the thread to wait for, may be <code>null</code>
+	 */
+	private void waitForThread(Thread thread) {
+		if (thread == null) {
+			return;
+		}
+		try {
+			thread.join(TRACKER_STOP_WAIT_IN_SECONDS * 1000L);
+		} catch (InterruptedException ex) {
+			LogService.writeLog(Level.SEVERE, ex);
+			Thread.currentThread().interrupt();
+		}
+		if (thread.isAlive()) {
+			LogService.writeMessage("WARNING: " + thread.getName() + " did not stop within " +
+				TRACKER_STOP_WAIT_IN_SECONDS + " seconds, closing the database anyway.");
+		}
+	}
+
+	/*
+	 * Stops the maintenance thread. Should only be called during shutdown.
+	 */
+	private synchronized void maintenanceJobStop() {
+		Thread tmpChecker = _maintenanceChecker;
+		_maintenanceChecker = null;
+		if (tmpChecker != null) {
+			tmpChecker.interrupt();
+		}
+	}
+
+	/*
+	 * Stops the hook listener. Should only be called during shutdown.
+	 */
+	private synchronized void hookListenerStop() {
+		HookListener tmpListener = _hookListener;
+		_hookListener = null;
+		if (tmpListener != null) {
+			tmpListener.stop();
+		}
+	}
+
+	/*
+	 * Stops the checker workers, waiting for running checkers to finish. Should only
+	 * be called during shutdown.
+	 */
+	private synchronized void checkerExecutorStop() {
+		CheckerExecutor tmpCheckers = _checkers;
+		_checkers = null;
+		if (tmpCheckers != null) {
+			tmpCheckers.shutdown();
+		}
+	}
+
+	/*
+	 * Closes the pooled Subversion sessions. Should only be called during shutdown,
+	 * after the checker workers have stopped.
+	 */
+	private synchronized void svnSessionPoolStop() {
+		SvnSessionPool tmpSessions = _svnSessions;
+		_svnSessions = null;
+		if (tmpSessions != null) {
+			tmpSessions.shutdown();
+		}
+	}
+
+	/*
+	 * Closes the shared git repositories. Should only be called during shutdown,
+	 * after the checker workers have stopped.
+	 */
+	private synchronized void repositoryRegistryStop() {
+		RepositoryRegistry tmpRepositories = _repositories;
+		_repositories = null;
+		if (tmpRepositories != null) {
+			tmpRepositories.shutdown();
+		}
 	}
 
 	/*
@@ -464,10 +724,17 @@ public class Main {
 			if (_mailTalker != null) {
 				_mailTalker = null;
 			}
-			_isRunning = false;
+			hookListenerStop();
+			maintenanceJobStop();
+			checkerExecutorStop();
+			svnSessionPoolStop();
+			repositoryRegistryStop();
+			Thread messageTracker = messageTrackerStop();
+			Thread serverTracker = serverTrackerStop();
+			// changes the trackers make on their way out are still written
+			waitForThread(messageTracker);
+			waitForThread(serverTracker);
 			_traqdb.closeDbs();
-			messageTrackerStop();
-			serverTrackerStop();
 			_users.clear();
 			_users = null;
 			_servers.clear();
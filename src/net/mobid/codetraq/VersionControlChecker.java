@@ -18,13 +18,13 @@
  */
 package net.mobid.codetraq;
 
-import java.util.logging.Level;
+import java.util.ArrayList;
 import net.mobid.codetraq.persistence.MessageDTO;
 import net.mobid.codetraq.persistence.ServerDTO;
 import net.mobid.codetraq.persistence.ServerRevision;
 import net.mobid.codetraq.persistence.UserDTO;
+import net.mobid.codetraq.persistence.UserRevision;
 import net.mobid.codetraq.utils.DbUtility;
-import net.mobid.codetraq.utils.DbUtility.DbException;
 import net.mobid.codetraq.utils.LogService;
 
 /**
@@ -71,27 +71,38 @@ public abstract class VersionControlChecker {
 	}
 
 	/**
-	 * Checks if user already has the latest revision on records. Each implementation
-	 * must override this method.
-	 * @return <code>true</code> if user already has latest revision, <code>false</code>
+	 * Checks whether the revision of the server is newer than the revision recorded
+	 * for the user. Each implementation must override this method.
+	 * @param ur - the <code>UserRevision</code> of this user
+	 * @param sr - the <code>ServerRevision</code> of this server
+	 * @return <code>true</code> if the server has a newer revision, <code>false</code>
 	 * otherwise
-	 * @throws Exception - Depends on implementation
 	 */
-	public abstract boolean compareLatestRevisionHistory() throws Exception;
+	protected abstract boolean isNewerRevision(UserRevision ur, ServerRevision sr);
 
 	/**
-	 * Adds a new revision message into the database to be picked up and sent later
-	 * by the <code>MessageTracker</code>.
+	 * Compares a revision of the server against the latest revision recorded for
+	 * the user. If the server's revision is newer, a message for the user is
+	 * created, but not saved. The user's record is left alone; call
+	 * <code>updateUserRevision</code> once the message has been saved, so a crash in
+	 * between can never lose the message.
 	 * @param sr - a <code>ServerRevision</code> object
+	 * @return a <code>MessageDTO</code> ready to be saved, or <code>null</code> if the
+	 * user already has this revision
 	 */
-	protected void sendRevisionMessage(ServerRevision sr) {
+	public MessageDTO createRevisionMessage(ServerRevision sr) {
+		checkServerInUserRecord();
+		UserRevision ur = _db.getUserLatestRevision(_server.getServerAddress(), _user.getId());
+		if (ur == null || !isNewerRevision(ur, sr)) {
+			return null;
+		}
 		MessageDTO message = new MessageDTO();
 		message.setAuthor(sr.getLastAuthor());
 		message.setMessage(sr.getLastMessage());
 		message.setRecipient(_user);
 		message.setServerName(_server.getShortName());
 		message.setTimestamp(sr.getLastRevisionTimestamp());
-		message.setFiles(sr.getFiles());
+		message.setFiles(new ArrayList<String>(sr.getFiles()));
 		if (sr.getVersionControlType() == VersionControlType.SVN) {
 			message.setRevisionId(sr.getLastRevisionId());
 			message.setSubject("New revision detected for " + _server.getShortName() +
@@ -99,16 +110,23 @@ public abstract class VersionControlChecker {
 		} else if (sr.getVersionControlType() == VersionControlType.GIT) {
 			message.setRevisionId(sr.getLastRevisionId());
 			message.setSubject("New revision detected for " + _server.getShortName() +
+				(sr.getLastBranch() != null ? " on " + sr.getLastBranch() : "") +
 				" (" + sr.getLastRevisionId() + ")");
 		}
+		return message;
+	}
 
-		try {
-			// add into the database
-			_db.saveMessage(message);
-			LogService.writeMessage("Adding Message object for " + _user.getNickname() + " to database.");
-		} catch (DbException ex) {
-			LogService.getLogger(VersionControlChecker.class.getName()).log(Level.SEVERE, null, ex);
-			LogService.writeLog(Level.SEVERE, ex);
+	/**
+	 * Records that the user has been given a revision of the server. This must only
+	 * be called after the message created by <code>createRevisionMessage</code> has
+	 * been saved.
+	 * @param sr - a <code>ServerRevision</code> object
+	 */
+	public void updateUserRevision(ServerRevision sr) {
+		UserRevision ur = _db.getUserLatestRevision(_server.getServerAddress(), _user.getId());
+		if (ur != null) {
+			ur.setLastRevisionId(sr.getLastRevisionId());
+			_db.updateUserLatestRevision(ur);
 		}
 	}
 }
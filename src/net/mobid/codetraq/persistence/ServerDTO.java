@@ -18,6 +18,9 @@
  */
 package net.mobid.codetraq.persistence;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import net.mobid.codetraq.VersionControlType;
 
 /**
@@ -39,11 +42,35 @@ public class ServerDTO {
 	}
 
 	/**
-	 * Sets this server's owner's user ID.
+	 * Sets this server's owner's user ID. The owner is also the first subscriber
+	 * of this server.
 	 * @param value - user ID for this server's owner
 	 */
 	public void setOwnerId(String value) {
 		_owner = value;
+		addSubscriberId(value);
+	}
+
+	private List<String> _subscribers = new ArrayList<String>();
+
+	/**
+	 * Returns the user IDs of everyone who should be notified about new revisions
+	 * on this server, starting with the owner.
+	 * @return a read-only <code>List</code> of user IDs
+	 */
+	public List<String> getSubscriberIds() {
+		return Collections.unmodifiableList(_subscribers);
+	}
+
+	/**
+	 * Adds a user to the list of users notified about new revisions on this
+	 * server. Adding a user twice has no effect.
+	 * @param value - user ID of the subscriber
+	 */
+	public void addSubscriberId(String value) {
+		if (!_subscribers.contains(value)) {
+			_subscribers.add(value);
+		}
 	}
 
 	private String _shortName = null;
@@ -156,4 +183,90 @@ public class ServerDTO {
 	public void setServerBranch(String value) {
 		_serverBranch = value;
 	}
+
+	private boolean _bareMirror = false;
+
+	/**
+	 * Returns whether the local copy of this server is a bare repository that only
+	 * receives fetched refs, instead of a clone with a working tree. Currently, this
+	 * is a GIT only property.
+	 * @return <code>true</code> if the local copy is a bare mirror
+	 */
+	public boolean isBareMirror() {
+		return _bareMirror;
+	}
+
+	/**
+	 * Sets whether the local copy of this server is a bare repository that only
+	 * receives fetched refs. Currently, this is a GIT only property.
+	 * @param value - <code>true</code> for a bare mirror, <code>false</code> for a clone
+	 */
+	public void setBareMirror(boolean value) {
+		_bareMirror = value;
+	}
+
+	private boolean _singleBranch = false;
+
+	/**
+	 * Returns whether only the monitored branch is copied from this server,
+	 * instead of every branch and tag. Currently, this is a GIT only property.
+	 * @return <code>true</code> if only the monitored branch is copied
+	 */
+	public boolean isSingleBranch() {
+		return _singleBranch;
+	}
+
+	/**
+	 * Sets whether only the monitored branch is copied from this server.
+	 * Currently, this is a GIT only property.
+	 * @param value - <code>true</code> to copy only the monitored branch
+	 */
+	public void setSingleBranch(boolean value) {
+		_singleBranch = value;
+	}
+
+	private List<String> _branchPatterns = new ArrayList<String>();
+
+	/**
+	 * Returns the branches that should be monitored. A pattern ending with "*"
+	 * matches every branch starting with the text before it. Currently, this is a
+	 * GIT only property.
+	 * @return a read-only <code>List</code> of branch names and patterns, starting
+	 * with the server branch
+	 */
+	public List<String> getBranchPatterns() {
+		if (_branchPatterns.isEmpty()) {
+			return Collections.singletonList(_serverBranch);
+		}
+		return Collections.unmodifiableList(_branchPatterns);
+	}
+
+	/**
+	 * Adds a branch name or pattern to the branches that should be monitored.
+	 * Currently, this is a GIT only property.
+	 * @param value - branch name, or a pattern ending with "*"
+	 */
+	public void addBranchPattern(String value) {
+		if (!_branchPatterns.contains(value)) {
+			_branchPatterns.add(value);
+		}
+	}
+
+	/**
+	 * Checks whether a branch is monitored on this server.
+	 * @param name - branch name, without the "refs/heads/" prefix
+	 * @return <code>true</code> if the branch matches one of the branch patterns
+	 */
+	public boolean isTrackedBranch(String name) {
+		for (String pattern : getBranchPatterns()) {
+			if (pattern.endsWith("*")) {
+				if (name.startsWith(pattern.substring(0, pattern.length() - 1))) {
+					return true;
+				}
+			} else if (name.equals(pattern)) {
+				return true;
+			}
+		}
+		return false;
+	}
 }
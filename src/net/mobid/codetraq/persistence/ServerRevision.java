@@ -19,9 +19,12 @@
 package net.mobid.codetraq.persistence;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import net.mobid.codetraq.VersionControlType;
-import org.joda.time.Period;
+import org.joda.time.Instant;
+import org.joda.time.Minutes;
 
 /**
  * Records the latest revision number for a server.
@@ -170,12 +173,54 @@ public class ServerRevision {
 	 */
 	public int getMinutesSinceLastCheck() {
 		if (getLastCheckedTimestamp() > 0)  {
-			Period p = new Period(getLastCheckedTimestamp(), System.currentTimeMillis());
-			return p.getMinutes();
+			// count whole minutes; Period.getMinutes() only returns the minutes field
+			Minutes m = Minutes.minutesBetween(new Instant(getLastCheckedTimestamp()), new Instant());
+			return m.getMinutes();
 		}
 		return Integer.MAX_VALUE;
 	}
 	
+	private long _pollInterval = 0;
+
+	/**
+	 * Returns the time to wait between two checks of this server. The interval
+	 * shrinks while the server is active and grows while it is idle.
+	 * @return polling interval in miliseconds, or 0 if it has not been set yet
+	 */
+	public long getPollInterval() {
+		return _pollInterval;
+	}
+
+	/**
+	 * Sets the time to wait between two checks of this server.
+	 * @param value - polling interval in miliseconds
+	 */
+	public void setPollInterval(long value) {
+		_pollInterval = value;
+	}
+
+	private long _lastHeadRevision = 0;
+
+	/**
+	 * Returns the HEAD revision of the whole repository when the log of this server
+	 * was last read up to it. For a server URL pointing at a subdirectory, HEAD
+	 * moves on with every commit to the repository, while the last revision on
+	 * record only moves with commits to the subdirectory. Currently, this is a SVN
+	 * only property.
+	 * @return HEAD revision, or 0 if unknown
+	 */
+	public long getLastHeadRevision() {
+		return _lastHeadRevision;
+	}
+
+	/**
+	 * Sets the HEAD revision the log of this server was last read up to.
+	 * @param value - HEAD revision
+	 */
+	public void setLastHeadRevision(long value) {
+		_lastHeadRevision = value;
+	}
+
 	// These properties are linked to a particular Revision --------------------------------------
 	// Needed to construct a Message
 	private String _rLastMessage = null;
@@ -300,4 +345,83 @@ public class ServerRevision {
 			_files.clear();
 		}
 	}
+
+	private Map<String, String> _branchTips = new HashMap<String, String>();
+
+	/**
+	 * Returns the last commit seen on each monitored branch. Currently, this is a
+	 * GIT only property.
+	 * @return a copy of the branch name to commit ID map
+	 */
+	public Map<String, String> getBranchTips() {
+		return new HashMap<String, String>(_branchTips);
+	}
+
+	/**
+	 * Replaces the last commit seen on each monitored branch. Currently, this is a
+	 * GIT only property.
+	 * @param value - a branch name to commit ID map
+	 */
+	public void setBranchTips(Map<String, String> value) {
+		// always store a new map, so the change is written to the database
+		_branchTips = new HashMap<String, String>(value);
+	}
+
+	/**
+	 * Records the last commit seen on a branch.
+	 * @param branch - branch name
+	 * @param revisionId - commit ID
+	 */
+	public void setBranchTip(String branch, String revisionId) {
+		Map<String, String> tips = new HashMap<String, String>(_branchTips);
+		tips.put(branch, revisionId);
+		_branchTips = tips;
+	}
+
+	private String _rLastBranch = null;
+
+	/**
+	 * Returns the branch the last revision was made on. Currently, this is a GIT
+	 * only property.
+	 * @return branch name, or <code>null</code> if unknown
+	 */
+	public String getLastBranch() {
+		return _rLastBranch;
+	}
+
+	/**
+	 * Sets the branch the last revision was made on.
+	 * @param value - branch name
+	 */
+	public void setLastBranch(String value) {
+		_rLastBranch = value;
+	}
+
+	/**
+	 * Returns a copy of this revision, which is not known to the database.
+	 * @return a new <code>ServerRevision</code> holding the same values
+	 */
+	public ServerRevision copy() {
+		ServerRevision sr = new ServerRevision();
+		sr._shouldUpdate = _shouldUpdate;
+		sr._versionControl = _versionControl;
+		sr._serverShortName = _serverShortName;
+		sr._serverAddress = _serverAddress;
+		sr._serverUsername = _serverUsername;
+		sr._serverPassword = _serverPassword;
+		sr._lastCheckedTimestamp = _lastCheckedTimestamp;
+		sr._pollInterval = _pollInterval;
+		sr._lastHeadRevision = _lastHeadRevision;
+		sr._rLastMessage = _rLastMessage;
+		sr._rLastRevisionId = _rLastRevisionId;
+		sr._rLastTimestamp = _rLastTimestamp;
+		sr._rLastAuthor = _rLastAuthor;
+		sr._rLastCommitter = _rLastCommitter;
+		if (_files != null) {
+			sr._files = new ArrayList<String>(_files);
+		}
+		sr._branchTips = new HashMap<String, String>(_branchTips);
+		sr._rLastBranch = _rLastBranch;
+		return sr;
+	}
 }
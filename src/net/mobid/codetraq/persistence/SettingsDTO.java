@@ -0,0 +1,440 @@
+/*
+ * Copyright 2011 Ronald Kurniawan.
+ *
+ * This file is part of CodeTraq.
+ *
+ * CodeTraq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CodeTraq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CodeTraq. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.mobid.codetraq.persistence;
+
+import java.util.HashMap;
+import java.util.Map;
+import net.mobid.codetraq.DurabilityMode;
+
+/**
+ * This is a template for storing the daemon's own settings in memory. Every
+ * setting has a sensible default, so the "settings" element in the configuration
+ * file is optional.
+ *
+ * @author Ronald Kurniawan
+ * @version 0.1
+ */
+public class SettingsDTO {
+
+	private int _workers = 8;
+
+	/**
+	 * Returns the number of worker threads used to run checkers.
+	 * @return number of checker worker threads
+	 */
+	public int getWorkers() {
+		return _workers;
+	}
+
+	/**
+	 * Sets the number of worker threads used to run checkers.
+	 * @param value - number of checker worker threads
+	 */
+	public void setWorkers(int value) {
+		_workers = value;
+	}
+
+	private int _queueSize = 256;
+
+	/**
+	 * Returns the maximum number of checkers waiting for a free worker.
+	 * @return size of the checker queue
+	 */
+	public int getQueueSize() {
+		return _queueSize;
+	}
+
+	/**
+	 * Sets the maximum number of checkers waiting for a free worker. Checkers
+	 * submitted while the queue is full are skipped until the next round.
+	 * @param value - size of the checker queue
+	 */
+	public void setQueueSize(int value) {
+		_queueSize = value;
+	}
+
+	private int _minInterval = 2;
+
+	/**
+	 * Returns the shortest time between two checks of an active server.
+	 * @return minimum polling interval in minutes
+	 */
+	public int getMinInterval() {
+		return _minInterval;
+	}
+
+	/**
+	 * Sets the shortest time between two checks of an active server.
+	 * @param value - minimum polling interval in minutes
+	 */
+	public void setMinInterval(int value) {
+		_minInterval = value;
+	}
+
+	private int _maxInterval = 240;
+
+	/**
+	 * Returns the longest time between two checks of an idle server.
+	 * @return maximum polling interval in minutes
+	 */
+	public int getMaxInterval() {
+		return _maxInterval;
+	}
+
+	/**
+	 * Sets the longest time between two checks of an idle server.
+	 * @param value - maximum polling interval in minutes
+	 */
+	public void setMaxInterval(int value) {
+		_maxInterval = value;
+	}
+
+	private boolean _spreadSchedule = false;
+
+	/**
+	 * Returns whether server checks are spread out evenly across the polling
+	 * interval instead of all starting at the same time.
+	 * @return <code>true</code> if checks are spread out, <code>false</code> otherwise
+	 */
+	public boolean isSpreadSchedule() {
+		return _spreadSchedule;
+	}
+
+	/**
+	 * Sets whether server checks are spread out evenly across the polling interval.
+	 * @param value - <code>true</code> to spread checks out, <code>false</code> otherwise
+	 */
+	public void setSpreadSchedule(boolean value) {
+		_spreadSchedule = value;
+	}
+
+	private int _jitter = 10;
+
+	/**
+	 * Returns the maximum random deviation added to each check when checks are
+	 * spread out.
+	 * @return jitter as a percentage of the polling interval
+	 */
+	public int getJitter() {
+		return _jitter;
+	}
+
+	/**
+	 * Sets the maximum random deviation added to each check when checks are
+	 * spread out.
+	 * @param value - jitter as a percentage of the polling interval (0 - 50)
+	 */
+	public void setJitter(int value) {
+		_jitter = Math.max(0, Math.min(50, value));
+	}
+
+	private int _hostConnections = 4;
+
+	private Map<String, Integer> _hostLimits = new HashMap<String, Integer>();
+
+	/**
+	 * Returns the number of checks allowed to run against one host at the same
+	 * time.
+	 * @param host - host name (and port, if any) of the server URL
+	 * @return the limit set for this host, or the default limit
+	 */
+	public int getHostConnections(String host) {
+		Integer limit = _hostLimits.get(host.toLowerCase());
+		if (limit == null) {
+			return _hostConnections;
+		}
+		return limit.intValue();
+	}
+
+	/**
+	 * Sets the default number of checks allowed to run against one host at the
+	 * same time.
+	 * @param value - default connection limit per host
+	 */
+	public void setHostConnections(int value) {
+		_hostConnections = value;
+	}
+
+	/**
+	 * Sets the number of checks allowed to run against a particular host at the
+	 * same time, overriding the default limit.
+	 * @param host - host name (and port, if any) of the server URL
+	 * @param value - connection limit for this host
+	 */
+	public void setHostConnections(String host, int value) {
+		_hostLimits.put(host.toLowerCase(), Integer.valueOf(value));
+	}
+
+	private int _hookPort = 0;
+
+	/**
+	 * Returns the port on which repository hook calls are received.
+	 * @return hook listener port, or 0 if the listener is disabled
+	 */
+	public int getHookPort() {
+		return _hookPort;
+	}
+
+	/**
+	 * Sets the port on which repository hook calls are received.
+	 * @param value - hook listener port, or 0 to disable the listener
+	 */
+	public void setHookPort(int value) {
+		_hookPort = value;
+	}
+
+	private String _hookHost = null;
+
+	/**
+	 * Returns the address the hook listener binds to.
+	 * @return bind address, or <code>null</code> to listen on all addresses
+	 */
+	public String getHookHost() {
+		return _hookHost;
+	}
+
+	/**
+	 * Sets the address the hook listener binds to.
+	 * @param value - bind address, or <code>null</code> to listen on all addresses
+	 */
+	public void setHookHost(String value) {
+		_hookHost = value;
+	}
+
+	private String _hookToken = null;
+
+	/**
+	 * Returns the shared secret that hook calls must carry.
+	 * @return hook token, or <code>null</code> if no token is required
+	 */
+	public String getHookToken() {
+		return _hookToken;
+	}
+
+	/**
+	 * Sets the shared secret that hook calls must carry.
+	 * @param value - hook token, or <code>null</code> if no token is required
+	 */
+	public void setHookToken(String value) {
+		_hookToken = value;
+	}
+
+	private int _svnBatch = 50;
+
+	/**
+	 * Returns the largest number of Subversion revisions fetched in one check.
+	 * @return maximum number of revisions per check
+	 */
+	public int getSvnBatch() {
+		return _svnBatch;
+	}
+
+	/**
+	 * Sets the largest number of Subversion revisions fetched in one check. A server
+	 * that is further behind catches up over the following checks.
+	 * @param value - maximum number of revisions per check
+	 */
+	public void setSvnBatch(int value) {
+		_svnBatch = value;
+	}
+
+	private int _gitBatch = 50;
+
+	/**
+	 * Returns the largest number of git commits reported in one check.
+	 * @return maximum number of commits per check
+	 */
+	public int getGitBatch() {
+		return _gitBatch;
+	}
+
+	/**
+	 * Sets the largest number of git commits reported in one check. When more
+	 * commits were pushed, the oldest ones are reported and the rest are left for
+	 * the next checks.
+	 * @param value - maximum number of commits per check
+	 */
+	public void setGitBatch(int value) {
+		_gitBatch = value;
+	}
+
+	private int _svnSessions = 4;
+
+	/**
+	 * Returns the number of Subversion sessions kept open to the same host.
+	 * @return maximum number of open sessions per host
+	 */
+	public int getSvnSessions() {
+		return _svnSessions;
+	}
+
+	/**
+	 * Sets the number of Subversion sessions kept open to the same host.
+	 * @param value - maximum number of open sessions per host
+	 */
+	public void setSvnSessions(int value) {
+		_svnSessions = value;
+	}
+
+	private int _svnIdle = 30;
+
+	/**
+	 * Returns how long an unused Subversion session is kept open.
+	 * @return idle timeout in minutes
+	 */
+	public int getSvnIdle() {
+		return _svnIdle;
+	}
+
+	/**
+	 * Sets how long an unused Subversion session is kept open.
+	 * @param value - idle timeout in minutes
+	 */
+	public void setSvnIdle(int value) {
+		_svnIdle = value;
+	}
+
+	private int _gitIdle = 30;
+
+	/**
+	 * Returns how long an unused local git repository is kept open.
+	 * @return idle timeout in minutes
+	 */
+	public int getGitIdle() {
+		return _gitIdle;
+	}
+
+	/**
+	 * Sets how long an unused local git repository is kept open.
+	 * @param value - idle timeout in minutes
+	 */
+	public void setGitIdle(int value) {
+		_gitIdle = value;
+	}
+
+	private int _gitMaintenance = 60;
+
+	/**
+	 * Returns how often the local git repositories are inspected for repacking.
+	 * @return interval in minutes, 0 if maintenance is disabled
+	 */
+	public int getGitMaintenance() {
+		return _gitMaintenance;
+	}
+
+	/**
+	 * Sets how often the local git repositories are inspected for repacking.
+	 * @param value - interval in minutes, 0 to disable maintenance
+	 */
+	public void setGitMaintenance(int value) {
+		_gitMaintenance = value;
+	}
+
+	private int _gitMaxPacks = 16;
+
+	/**
+	 * Returns the number of packs a local git repository may have before it is repacked.
+	 * @return maximum number of packs
+	 */
+	public int getGitMaxPacks() {
+		return _gitMaxPacks;
+	}
+
+	/**
+	 * Sets the number of packs a local git repository may have before it is repacked.
+	 * @param value - maximum number of packs
+	 */
+	public void setGitMaxPacks(int value) {
+		_gitMaxPacks = value;
+	}
+
+	private int _gitMaxLoose = 1000;
+
+	/**
+	 * Returns the number of loose objects a local git repository may have before it is repacked.
+	 * @return maximum number of loose objects
+	 */
+	public int getGitMaxLoose() {
+		return _gitMaxLoose;
+	}
+
+	/**
+	 * Sets the number of loose objects a local git repository may have before it is repacked.
+	 * @param value - maximum number of loose objects
+	 */
+	public void setGitMaxLoose(int value) {
+		_gitMaxLoose = value;
+	}
+
+	private int _gitRepackers = 1;
+
+	/**
+	 * Returns the number of local git repositories that may be repacked at the same time.
+	 * @return number of repacking threads
+	 */
+	public int getGitRepackers() {
+		return _gitRepackers;
+	}
+
+	/**
+	 * Sets the number of local git repositories that may be repacked at the same time.
+	 * @param value - number of repacking threads
+	 */
+	public void setGitRepackers(int value) {
+		_gitRepackers = value;
+	}
+
+	private DurabilityMode _durability = DurabilityMode.BATCH;
+
+	/**
+	 * Returns when changes to the database are committed.
+	 * @return a <code>DurabilityMode</code> value
+	 */
+	public DurabilityMode getDurability() {
+		return _durability;
+	}
+
+	/**
+	 * Sets when changes to the database are committed.
+	 * @param value - a <code>DurabilityMode</code> value
+	 */
+	public void setDurability(DurabilityMode value) {
+		_durability = value;
+	}
+
+	private int _groupCommit = 50;
+
+	/**
+	 * Returns how long changes are collected before they are committed, in group
+	 * commit mode.
+	 * @return time in miliseconds
+	 */
+	public int getGroupCommit() {
+		return _groupCommit;
+	}
+
+	/**
+	 * Sets how long changes are collected before they are committed, in group
+	 * commit mode.
+	 * @param value - time in miliseconds
+	 */
+	public void setGroupCommit(int value) {
+		_groupCommit = value;
+	}
+}
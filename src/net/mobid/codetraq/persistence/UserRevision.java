@@ -85,4 +85,16 @@ public class UserRevision {
 		_lastRevisionId = value;
 	}
 
+	/**
+	 * Returns a copy of this revision, which is not known to the database.
+	 * @return a new <code>UserRevision</code> holding the same values
+	 */
+	public UserRevision copy() {
+		UserRevision ur = new UserRevision();
+		ur._serverAddress = _serverAddress;
+		ur._owner = _owner;
+		ur._lastRevisionId = _lastRevisionId;
+		return ur;
+	}
+
 }
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2011 Ronald Kurniawan.
+ *
+ * This file is part of CodeTraq.
+ *
+ * CodeTraq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CodeTraq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CodeTraq. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.mobid.codetraq.runnables;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import net.mobid.codetraq.persistence.SettingsDTO;
+import net.mobid.codetraq.utils.LogService;
+
+/**
+ * This class runs checkers on a fixed pool of worker threads instead of starting
+ * a new thread for every server. Waiting checkers are kept in a bounded queue.
+ * A checker is skipped when the previous run for the same server has not
+ * finished yet, or when the queue is full.
+ * <p>Every checker also belongs to a host (the authority part of the server URL).
+ * Only a limited number of checkers may talk to the same host at once; the rest
+ * wait in a first-come first-served queue for that host, without holding on to a
+ * worker thread.</p>
+ *
+ * @author Ronald Kurniawan
+ * @version 0.1
+ */
+public class CheckerExecutor {
+
+	private ThreadPoolExecutor _pool = null;
+
+	private SettingsDTO _settings = null;
+
+	private final Set<String> _inFlight = Collections.synchronizedSet(new HashSet<String>());
+
+	// guarded by itself
+	private final Map<String, HostQueue> _hosts = new HashMap<String, HostQueue>();
+
+	private final int SHUTDOWN_WAIT_IN_SECONDS = 30;
+
+	/**
+	 * Creates a new CheckerExecutor.
+	 * @param settings - a <code>SettingsDTO</code> object holding the number of workers,
+	 * the queue size and the connection limit of each host; there is always at least
+	 * one worker and room for one waiting checker
+	 */
+	public CheckerExecutor(SettingsDTO settings) {
+		_settings = settings;
+		int workers = Math.max(1, settings.getWorkers());
+		_pool = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(Math.max(1, settings.getQueueSize())), new CheckerThreadFactory(),
+			new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Marks a server as busy outside of this executor, for example while its local
+	 * copy is being maintained. Checkers for the server are skipped until
+	 * <code>unreserve</code> is called.
+	 * @param key - identifies the server, as passed to <code>submit</code>
+	 * @return <code>true</code> if the server was reserved, <code>false</code> if a
+	 * checker for it is queued or running
+	 */
+	public boolean reserve(String key) {
+		return _inFlight.add(key);
+	}
+
+	/**
+	 * Releases a server reserved with <code>reserve</code>.
+	 * @param key - identifies the server, as passed to <code>submit</code>
+	 */
+	public void unreserve(String key) {
+		_inFlight.remove(key);
+	}
+
+	/**
+	 * Queues a checker for execution.
+	 * @param key - identifies the server being checked, normally its short name
+	 * @param host - the host the checker connects to
+	 * @param checker - the checker to run
+	 * @param rejected - run instead of the checker when a checker that had to wait
+	 * for its host cannot be handed to the worker pool later on, may be <code>null</code>
+	 * @return <code>true</code> if the checker was queued, <code>false</code> if it
+	 * was skipped
+	 */
+	public boolean submit(String key, String host, Runnable checker, Runnable rejected) {
+		if (!_inFlight.add(key)) {
+			LogService.writeMessage("Skipping check for " + key + ", previous check is still running");
+			return false;
+		}
+		PendingCheck check = new PendingCheck(key, host, checker, rejected);
+		synchronized (_hosts) {
+			HostQueue queue = getHostQueue(host);
+			if (queue.running >= queue.limit) {
+				if (queue.waiting.size() >= _settings.getQueueSize()) {
+					_inFlight.remove(key);
+					LogService.writeMessage("Skipping check for " + key + ", queue for host " + host + " is full");
+					return false;
+				}
+				queue.waiting.add(check);
+				return true;
+			}
+			queue.running++;
+		}
+		return dispatch(check, false);
+	}
+
+	/**
+	 * Returns the number of checkers currently running.
+	 * @return number of running checkers
+	 */
+	public int getActiveCount() {
+		return _pool.getActiveCount();
+	}
+
+	/**
+	 * Returns the number of checkers waiting for a free worker.
+	 * @return number of queued checkers
+	 */
+	public int getQueuedCount() {
+		return _pool.getQueue().size();
+	}
+
+	/**
+	 * Returns the number of checkers waiting for a connection to a host.
+	 * @param host - the host
+	 * @return number of checkers waiting for the host
+	 */
+	public int getHostWaitingCount(String host) {
+		synchronized (_hosts) {
+			HostQueue queue = _hosts.get(host);
+			return queue == null ? 0 : queue.waiting.size();
+		}
+	}
+
+	/**
+	 * Returns a readable summary of the running and waiting checkers, with the
+	 * number of checkers waiting for each host.
+	 * @return the state of the queues
+	 */
+	public String dumpQueues() {
+		List<String> hosts;
+		synchronized (_hosts) {
+			hosts = new ArrayList<String>(_hosts.keySet());
+		}
+		Collections.sort(hosts);
+		String cr = System.getProperty("line.separator");
+		StringBuilder sb = new StringBuilder();
+		sb.append("Checkers: ").append(getActiveCount()).append(" running, ")
+			.append(getQueuedCount()).append(" waiting for a worker").append(cr);
+		for (String host : hosts) {
+			int waiting = getHostWaitingCount(host);
+			if (waiting > 0) {
+				sb.append("  ").append(host).append(": ").append(waiting).append(" waiting for the host")
+					.append(cr);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Stops accepting new checkers and waits for the running ones to finish.
+	 * Checkers that do not finish in time are interrupted.
+	 */
+	public void shutdown() {
+		_pool.shutdown();
+		try {
+			if (!_pool.awaitTermination(SHUTDOWN_WAIT_IN_SECONDS, TimeUnit.SECONDS)) {
+				_pool.shutdownNow();
+			}
+		} catch (InterruptedException ex) {
+			LogService.writeLog(Level.SEVERE, ex);
+			_pool.shutdownNow();
+		}
+	}
+
+	/*
+	 * Hands a checker that already holds a connection slot on its host over to the
+	 * worker pool. A checker that was waiting for its host has already been reported
+	 * as queued, so its submitter is told through the rejection callback instead.
+	 * @return <code>true</code> if the pool accepted the checker
+	 */
+	private boolean dispatch(PendingCheck check, boolean waited) {
+		try {
+			_pool.execute(check);
+		} catch (RejectedExecutionException ex) {
+			_inFlight.remove(check.key);
+			LogService.writeMessage("Skipping check for " + check.key + ", checker queue is full");
+			release(check.host);
+			if (waited && check.rejected != null) {
+				try {
+					check.rejected.run();
+				} catch (RuntimeException rex) {
+					LogService.getLogger(CheckerExecutor.class.getName()).log(Level.SEVERE, null, rex);
+					LogService.writeLog(Level.SEVERE, rex);
+				}
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Gives the connection slot of a finished checker to the next checker waiting
+	 * for the same host, or frees it if nobody is waiting.
+	 */
+	private void release(String host) {
+		PendingCheck next = null;
+		synchronized (_hosts) {
+			HostQueue queue = getHostQueue(host);
+			next = queue.waiting.poll();
+			if (next == null) {
+				queue.running--;
+			}
+		}
+		if (next != null) {
+			dispatch(next, true);
+		}
+	}
+
+	/*
+	 * Returns the queue of a host, creating it if needed. Must be called while
+	 * holding the lock on _hosts.
+	 */
+	private HostQueue getHostQueue(String host) {
+		HostQueue queue = _hosts.get(host);
+		if (queue == null) {
+			queue = new HostQueue(Math.max(1, _settings.getHostConnections(host)));
+			_hosts.put(host, queue);
+		}
+		return queue;
+	}
+
+	/*
+	 * A checker together with the server and host it belongs to.
+	 */
+	class PendingCheck implements Runnable {
+
+		final String key;
+
+		final String host;
+
+		final Runnable checker;
+
+		final Runnable rejected;
+
+		PendingCheck(String key, String host, Runnable checker, Runnable rejected) {
+			this.key = key;
+			this.host = host;
+			this.checker = checker;
+			this.rejected = rejected;
+		}
+
+		public void run() {
+			try {
+				checker.run();
+			} finally {
+				_inFlight.remove(key);
+				release(host);
+			}
+		}
+	}
+
+	/*
+	 * Connection slots and waiting checkers of a single host.
+	 */
+	static class HostQueue {
+
+		final int limit;
+
+		int running = 0;
+
+		final LinkedList<PendingCheck> waiting = new LinkedList<PendingCheck>();
+
+		HostQueue(int limit) {
+			this.limit = limit;
+		}
+	}
+
+	/*
+	 * Names the worker threads so they can be recognised in a thread dump.
+	 */
+	static class CheckerThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger _count = new AtomicInteger(0);
+
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "checker-" + _count.incrementAndGet());
+		}
+	}
+}
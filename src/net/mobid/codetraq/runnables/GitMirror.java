@@ -0,0 +1,740 @@
+/*
+ * Copyright 2011 Ronald Kurniawan.
+ *
+ * This file is part of CodeTraq.
+ *
+ * CodeTraq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CodeTraq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CodeTraq. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.mobid.codetraq.runnables;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import net.mobid.codetraq.persistence.ServerDTO;
+import net.mobid.codetraq.utils.LogService;
+import net.mobid.codetraq.utils.Utilities;
+import org.eclipse.jgit.api.CheckoutCommand;
+import org.eclipse.jgit.api.CloneCommand;
+import org.eclipse.jgit.api.FetchCommand;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.InitCommand;
+import org.eclipse.jgit.api.MergeCommand;
+import org.eclipse.jgit.api.PullCommand;
+import org.eclipse.jgit.api.PullResult;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TextProgressMonitor;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.TagOpt;
+import org.eclipse.jgit.transport.TrackingRefUpdate;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FileUtils;
+
+/**
+ * This class keeps the local copy of a git server up to date. A local repository
+ * is created and the project is cloned the first time; afterwards a "pull" is
+ * performed to bring in the latest commits. The local copy lives in
+ * "gitrepos/&lt;short name&gt;".
+ * <p>Servers in bare mirror mode are kept in a bare repository in
+ * "gitrepos/&lt;short name&gt;.git" instead. Only the branches are fetched into it;
+ * there is no working tree to check out or merge.</p>
+ * <p>Servers in single branch mode only copy the monitored branch, without the
+ * other branches and tags, in either layout.</p>
+ * <p>Updates hold the write lock of the local copy, so they never run alongside a
+ * revision walk on the same copy.</p>
+ *
+ * @author Ronald Kurniawan
+ * @version 0.1
+ */
+public class GitMirror {
+
+	private ServerDTO _server = null;
+
+	private RepositoryRegistry _repositories = null;
+
+	private Repository repo = null;
+
+	private Git mGit = null;
+
+	/**
+	 * Creates a new GitMirror that opens the local repository for its own use and
+	 * closes it when done.
+	 * @param server - a <code>ServerDTO</code> instance
+	 */
+	public GitMirror(ServerDTO server) {
+		this(server, new RepositoryRegistry(0));
+	}
+
+	/**
+	 * Creates a new GitMirror that shares local repositories through a registry.
+	 * @param server - a <code>ServerDTO</code> instance
+	 * @param repositories - the <code>RepositoryRegistry</code> holding open repositories
+	 */
+	public GitMirror(ServerDTO server, RepositoryRegistry repositories) {
+		_server = server;
+		_repositories = repositories;
+	}
+
+	/**
+	 * Checks the git repository directory, clone a project if local repository
+	 * does not exist, otherwise do a pull to update to latest repository.
+	 * @return <code>true</code> if the local repository is up to date with the
+	 * server, <code>false</code> if it could not be created, cloned or updated
+	 */
+	public boolean update() {
+		Lock lock = _repositories.getLock(_server).writeLock();
+		lock.lock();
+		try {
+			if (_server.isBareMirror()) {
+				return updateBare();
+			}
+			return updateClone();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Asks the server for the commits at the tips of the monitored branches, without
+	 * fetching anything. This is the equivalent of "git ls-remote" and only needs a
+	 * single round trip.
+	 * @return a <code>Map</code> of branch names to commit IDs, or <code>null</code> if
+	 * there is no local copy yet or the server could not be asked
+	 */
+	public Map<String, String> getRemoteTips() {
+		File gitDir = getGitDirectory(_server);
+		if (!new File(gitDir, "config").exists()) {
+			return null;
+		}
+		Repository r = null;
+		Transport transport = null;
+		FetchConnection connection = null;
+		Lock lock = _repositories.getLock(_server).readLock();
+		lock.lock();
+		try {
+			r = _repositories.acquire(_server);
+			transport = Transport.open(r, new URIish(_server.getServerAddress()));
+			transport.setTimeout(60);
+			connection = transport.openFetch();
+			Map<String, String> tips = new HashMap<String, String>();
+			for (Ref ref : connection.getRefs()) {
+				if (!ref.getName().startsWith(Constants.R_HEADS) || ref.getObjectId() == null) {
+					continue;
+				}
+				String branch = ref.getName().substring(Constants.R_HEADS.length());
+				if (_server.isTrackedBranch(branch)) {
+					tips.put(branch, ref.getObjectId().getName());
+				}
+			}
+			return tips;
+		} catch (Exception ex) {
+			LogService.getLogger(GitMirror.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+		} finally {
+			if (connection != null) {
+				connection.close();
+			}
+			if (transport != null) {
+				transport.close();
+			}
+			if (r != null) {
+				_repositories.release(_server);
+			}
+			lock.unlock();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the git directory of the local copy of a server.
+	 * @param server - a <code>ServerDTO</code> instance
+	 * @return the ".git" directory of a clone, or the bare mirror directory
+	 */
+	public static File getGitDirectory(ServerDTO server) {
+		if (server.isBareMirror()) {
+			return new File("gitrepos/" + server.getShortName() + ".git");
+		}
+		return new File("gitrepos/" + server.getShortName() + "/.git");
+	}
+
+	/*
+	 * Clones the server into a working copy if it does not exist yet, otherwise
+	 * pulls the latest commits into it.
+	 * @return <code>true</code> if the clone or pull worked, <code>false</code> otherwise
+	 */
+	private boolean updateClone() {
+		// we need to make sure that a project repository dir can be created or
+		// already exists
+		Utilities.createGitProjectDir(_server.getShortName());
+		File gitProjectDir = new File("gitrepos/" + _server.getShortName());
+		if (!gitProjectDir.exists()) {
+			System.out.printf("Cannot create local repositories for server %s. Please check read/write access daemon directory.%n",
+				_server.getServerAddress());
+			return false;
+		}
+		// try to perform clone if it's a fresh repo, otherwise do a pull
+		File dotGitPath = new File("gitrepos/" + _server.getShortName() + "/.git");
+		if (!dotGitPath.exists()) {
+			if (_server.isSingleBranch()) {
+				return cloneSingleBranch(gitProjectDir);
+			}
+			return clone("gitrepos/" + _server.getShortName());
+		}
+		try {
+			updateRemote();
+		} catch (Exception ex) {
+			LogService.getLogger(GitMirror.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+			return false;
+		}
+		return pull();
+	}
+
+	/*
+	 * Creates the bare mirror if it does not exist yet, then fetches the branches
+	 * of the server into it.
+	 * @return <code>true</code> if the fetch worked, <code>false</code> otherwise
+	 */
+	private boolean updateBare() {
+		File gitDir = getGitDirectory(_server);
+		Utilities.createGitProjectDir(gitDir.getName());
+		if (!gitDir.exists()) {
+			System.out.printf("Cannot create local repositories for server %s. Please check read/write access daemon directory.%n",
+				_server.getServerAddress());
+			return false;
+		}
+		try {
+			if (!new File(gitDir, "config").exists()) {
+				initBare(gitDir);
+			} else {
+				updateRemote();
+			}
+			fetch();
+		} catch(Exception ex) {
+			LogService.getLogger(GitMirror.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Creates a bare repository whose "origin" remote copies every branch of the
+	 * server onto the branch of the same name, and whose HEAD points to the
+	 * monitored branch.
+	 * @param gitDir - path to the bare repository
+	 */
+	private void initBare(File gitDir) throws IOException, URISyntaxException {
+		LogService.writeMessage("GitMirror is creating a bare mirror of " +
+			_server.getServerAddress());
+		InitCommand init = new InitCommand();
+		init.setBare(true);
+		init.setDirectory(gitDir);
+		Repository r = init.call().getRepository();
+		try {
+			setupRemote(r);
+			r.getConfig().save();
+			r.updateRef(Constants.HEAD).link(getRemoteBranch());
+		} finally {
+			r.close();
+		}
+	}
+
+	/*
+	 * Clones only the monitored branch of a GIT repository. This is done by hand,
+	 * because the clone command always fetches every branch: the "origin" remote is
+	 * set up to fetch the monitored branch alone, without tags, and the branch is
+	 * then checked out. If any of this fails, the half made repository is deleted,
+	 * so the next update starts over with a fresh clone instead of pulling into a
+	 * repository without a branch.
+	 * @param workTree - path to the working tree of the local repository
+	 * @return <code>true</code> if the branch was cloned, <code>false</code> otherwise
+	 */
+	private boolean cloneSingleBranch(File workTree) {
+		LogService.writeMessage("GitMirror is trying to do a single branch clone from " +
+			_server.getServerAddress());
+		Repository r = null;
+		boolean cloned = false;
+		try {
+			InitCommand init = new InitCommand();
+			init.setDirectory(workTree);
+			Git g = init.call();
+			r = g.getRepository();
+			String branch = getRemoteBranch();
+			setupRemote(r);
+			r.getConfig().setString(ConfigConstants.CONFIG_BRANCH_SECTION, Repository.shortenRefName(branch),
+				ConfigConstants.CONFIG_KEY_REMOTE, "origin");
+			r.getConfig().setString(ConfigConstants.CONFIG_BRANCH_SECTION, Repository.shortenRefName(branch),
+				ConfigConstants.CONFIG_KEY_MERGE, branch);
+			r.getConfig().save();
+			FetchCommand fetcher = g.fetch();
+			fetcher.setRemote("origin");
+			fetcher.setTimeout(60);
+			fetcher.setProgressMonitor(new TextProgressMonitor());
+			fetcher.call();
+			ObjectId tip = r.resolve(Constants.R_REMOTES + "origin/" + Repository.shortenRefName(branch));
+			if (tip == null) {
+				LogService.writeMessage("Cannot find branch " + branch + " on " + _server.getServerAddress());
+				return false;
+			}
+			// point the local branch and HEAD at the fetched tip, then fill the working tree
+			RefUpdate u = r.updateRef(branch);
+			u.setNewObjectId(tip);
+			u.forceUpdate();
+			r.updateRef(Constants.HEAD).link(branch);
+			RevWalk rw = new RevWalk(r);
+			try {
+				DirCacheCheckout checkout = new DirCacheCheckout(r, r.lockDirCache(), rw.parseCommit(tip).getTree());
+				checkout.checkout();
+			} finally {
+				rw.release();
+			}
+			cloned = true;
+		} catch(Exception ex) {
+			LogService.getLogger(GitMirror.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+		} finally {
+			if (r != null) {
+				r.close();
+			}
+			if (!cloned) {
+				deleteQuietly(workTree);
+			}
+		}
+		return cloned;
+	}
+
+	/*
+	 * Deletes a directory and everything in it, logging instead of throwing if
+	 * anything goes wrong.
+	 */
+	private void deleteQuietly(File directory) {
+		try {
+			FileUtils.delete(directory, FileUtils.RECURSIVE | FileUtils.RETRY | FileUtils.SKIP_MISSING);
+		} catch (IOException ex) {
+			LogService.getLogger(GitMirror.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+		}
+	}
+
+	/*
+	 * Returns the full name of the monitored branch on the server.
+	 */
+	private String getRemoteBranch() {
+		String branch = _server.getServerBranch();
+		if (!branch.startsWith(Constants.R_REFS)) {
+			branch = Constants.R_HEADS + branch;
+		}
+		return branch;
+	}
+
+	/*
+	 * Adds the "origin" remote to a new local repository. A bare mirror copies each
+	 * branch onto the branch of the same name, a clone onto "origin/&lt;branch&gt;".
+	 * In single branch mode only the monitored branches are fetched, and tags are
+	 * left out. Either way, one fetch updates every monitored branch.
+	 * @param r - the new local repository
+	 */
+	private void setupRemote(Repository r) throws URISyntaxException {
+		RemoteConfig remote = new RemoteConfig(r.getConfig(), "origin");
+		remote.addURI(new URIish(_server.getServerAddress()));
+		remote.setFetchRefSpecs(getFetchRefSpecs());
+		remote.setTagOpt(getTagOpt());
+		remote.update(r.getConfig());
+	}
+
+	/*
+	 * Rewrites what the "origin" remote of an existing local copy fetches, when the
+	 * monitored branches or the single branch mode have changed since the copy was
+	 * made. Otherwise newly monitored branches would never be fetched.
+	 */
+	private void updateRemote() throws IOException, URISyntaxException {
+		Repository r = _repositories.acquire(_server);
+		try {
+			RemoteConfig remote = new RemoteConfig(r.getConfig(), "origin");
+			List<RefSpec> refSpecs = getFetchRefSpecs();
+			if (remote.getFetchRefSpecs().equals(refSpecs) && remote.getTagOpt() == getTagOpt()) {
+				return;
+			}
+			LogService.writeMessage("GitMirror is changing the branches it fetches from " +
+				_server.getServerAddress() + " to " + refSpecs);
+			remote.setFetchRefSpecs(refSpecs);
+			remote.setTagOpt(getTagOpt());
+			remote.update(r.getConfig());
+			r.getConfig().save();
+		} finally {
+			_repositories.release(_server);
+		}
+	}
+
+	/*
+	 * Returns the refspecs that fetch the monitored branches of the server.
+	 */
+	private List<RefSpec> getFetchRefSpecs() {
+		List<String> branches = new ArrayList<String>();
+		if (_server.isSingleBranch()) {
+			branches.addAll(_server.getBranchPatterns());
+		} else {
+			branches.add("*");
+		}
+		List<RefSpec> refSpecs = new ArrayList<RefSpec>();
+		for (String branch : branches) {
+			String destination = _server.isBareMirror() ? Constants.R_HEADS : Constants.R_REMOTES + "origin/";
+			refSpecs.add(new RefSpec("+" + Constants.R_HEADS + branch + ":" + destination + branch));
+		}
+		return refSpecs;
+	}
+
+	/*
+	 * Returns whether tags are fetched along with the branches.
+	 */
+	private TagOpt getTagOpt() {
+		return _server.isSingleBranch() ? TagOpt.NO_TAGS : TagOpt.AUTO_FOLLOW;
+	}
+
+	/*
+	 * Fetches the branches of the server into the bare mirror.
+	 */
+	private void fetch() throws Exception {
+		LogService.writeMessage("GitMirror is trying to do a fetch from " +
+			_server.getServerAddress());
+		repo = _repositories.acquire(_server);
+		try {
+			mGit = new Git(repo);
+			FetchCommand fetcher = mGit.fetch();
+			fetcher.setRemote("origin");
+			fetcher.setTimeout(60);
+			fetcher.setRemoveDeletedRefs(true);
+			fetcher.setProgressMonitor(new TextProgressMonitor());
+			FetchResult result = fetcher.call();
+			if (result.getTrackingRefUpdates().isEmpty()) {
+				LogService.writeMessage("GitMirror did not find anything to fetch from " +
+					_server.getServerAddress());
+				return;
+			}
+			showFetchResult(result, true);
+		} finally {
+			_repositories.release(_server);
+		}
+	}
+
+	/*
+	 * Does a pull from a GIT repository.
+	 * @return <code>true</code> if the pull worked, <code>false</code> otherwise
+	 */
+	private boolean pull() {
+		LogService.writeMessage("GitMirror is trying to do a pull from " +
+			_server.getServerAddress());
+		//System.out.printf("GitMirror is trying to do a pull from %s%n", _server.getServerAddress());
+		try {
+			repo = _repositories.acquire(_server);
+		} catch(IOException ex) {
+			LogService.getLogger(GitMirror.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+			return false;
+		}
+		try {
+			if (mGit == null) {
+			 mGit = new Git(repo);
+			}
+			if (mGit.getRepository().getFullBranch() == null ||
+				Utilities.isHexString(mGit.getRepository().getFullBranch())) {
+				attachHead(mGit, _server.getServerBranch());
+			}
+			PullCommand puller = mGit.pull();
+			puller.setTimeout(60);
+			puller.setProgressMonitor(new TextProgressMonitor());
+			PullResult pullResult = puller.call();
+			if (pullResult != null) {
+				LogService.writeMessage("GitMirror has something to pull from " +
+					_server.getServerAddress());
+				FetchResult result = pullResult.getFetchResult();
+				if (result.getTrackingRefUpdates().isEmpty()) {
+					return true;
+				}
+				showFetchResult(result, true);
+			} else {
+				LogService.writeMessage("GitMirror did not find anything to pull from " +
+					_server.getServerAddress());
+			}
+			return true;
+		} catch(Exception ex) {
+			LogService.getLogger(GitMirror.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+			return false;
+		} finally {
+			_repositories.release(_server);
+		}
+	}
+
+	/*
+	 * Clones a GIT repository.
+	 * @param path - path to local repository
+	 * @return <code>true</code> if the clone worked, <code>false</code> otherwise
+	 */
+	private boolean clone(String path) {
+		LogService.writeMessage("GitMirror is trying to do a clone from " +
+			_server.getServerAddress());
+		System.out.printf("GitMirror is trying to do a clone from %s%n", _server.getServerAddress());
+		try {
+			File gitDir = new File(path);
+			CloneCommand cloner = new CloneCommand();
+			cloner.setBare(false);
+			cloner.setDirectory(gitDir);
+			cloner.setProgressMonitor(new TextProgressMonitor());
+			cloner.setRemote("origin");
+			cloner.setURI(_server.getServerAddress());
+			mGit = cloner.call();
+			// for some reason, repository cloned with jgit always has HEAD detached.
+			// we need to create a "temporary" branch, then create a "master" branch.
+			// we then merge the two...
+			if (!isMasterBranchDefined(mGit.getRepository())) {
+				// save the remote and merge config values
+				mGit.getRepository().getConfig().setString(ConfigConstants.CONFIG_BRANCH_SECTION,
+					_server.getServerBranch(), ConfigConstants.CONFIG_KEY_REMOTE, "origin");
+				mGit.getRepository().getConfig().setString(ConfigConstants.CONFIG_BRANCH_SECTION,
+					_server.getServerBranch(), ConfigConstants.CONFIG_KEY_MERGE, _server.getServerBranch());
+				mGit.getRepository().getConfig().save();
+			}
+			if (mGit.getRepository().getFullBranch() == null ||
+				Utilities.isHexString(mGit.getRepository().getFullBranch())) {
+				// HEAD is detached and we need to reattach it
+				attachHead(mGit, _server.getServerBranch());
+			}
+			return true;
+		} catch(Exception ex) {
+			LogService.getLogger(GitMirror.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+			return false;
+		} finally {
+			// the clone has its own repository instance; later checks open it
+			// through the registry
+			if (mGit != null) {
+				mGit.getRepository().close();
+				mGit = null;
+			}
+		}
+	}
+
+	/*
+	 * Checks whether master branch is defined in local repository's configuration.
+	 * @param r - a GIT repository
+	 * @return <code>true</code> if master branch is defined, <code>false</code>
+	 * otherwise
+	 */
+	private boolean isMasterBranchDefined(Repository r) {
+		if (r.getConfig().getString(ConfigConstants.CONFIG_BRANCH_SECTION,
+			_server.getServerBranch(), ConfigConstants.CONFIG_KEY_REMOTE) == null) {
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Attaches a "detached" HEAD on a local GIT repository.
+	 * @param g - a <code>Git</code> object
+	 * @param branch - branch name
+	 */
+	private void attachHead(Git g, String branch) {
+		LogService.writeMessage("Trying to attach HEAD to " + g.getRepository().toString());
+		try {
+			CheckoutCommand temp = g.checkout();
+			temp.setCreateBranch(true);
+			temp.setName("temp");
+			Ref tRef = temp.call();
+			CheckoutCommand b = g.checkout();
+			b.setName(branch);
+			b.setCreateBranch(true);
+			b.call();
+			MergeCommand merge = g.merge();
+			merge.include(tRef);
+			merge.call();
+		} catch (Exception ex) {
+			LogService.getLogger(GitMirror.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+		}
+	}
+
+	/*
+	 * This method is borrowed from org.eclipse.jgit.pgm.AbstractFetchCommand and modified to suit our need.
+	 */
+	private void showFetchResult(final FetchResult r, boolean logOnly) {
+		ObjectReader reader = repo.newObjectReader();
+		PrintWriter out = new PrintWriter(System.out);
+		try {
+			boolean shownURI = false;
+			for (final TrackingRefUpdate u : r.getTrackingRefUpdates()) {
+				if (u.getResult() == RefUpdate.Result.NO_CHANGE) {
+					continue;
+				}
+				final char type = shortTypeOf(u.getResult());
+				final String longType = longTypeOf(reader, u);
+				final String src = abbreviateRef(u.getRemoteName(), false);
+				final String dst = abbreviateRef(u.getLocalName(), true);
+
+				if (!shownURI) {
+					out.println("jGIT::from " + r.getURI());
+					shownURI = true;
+				}
+
+				if (!logOnly) {
+					out.format(" %c %-17s %-10s -> %s", type, longType, src, dst);
+					out.println();
+				}
+
+			}
+		} finally {
+			reader.release();
+		}
+		showRemoteMessages(r.getMessages());
+	}
+
+	/*
+	 * This method is borrowed from org.eclipse.jgit.pgm.AbstractFetchCommand and modified to suit our
+	 * need.
+	 */
+	static void showRemoteMessages(String pkt) {
+		PrintWriter writer = new PrintWriter(System.err);
+		while (0 < pkt.length()) {
+			final int lf = pkt.indexOf('\n');
+			final int cr = pkt.indexOf('\r');
+			final int s;
+			if (0 <= lf && 0 <= cr)
+				s = Math.min(lf, cr);
+			else if (0 <= lf)
+				s = lf;
+			else if (0 <= cr)
+				s = cr;
+			else {
+				writer.print("jGIT::remote reply: " + pkt);
+				writer.println();
+				break;
+			}
+
+			if (pkt.charAt(s) == '\r') {
+				writer.print("jGIT::remote reply: " + pkt.substring(0, s));
+				writer.print('\r');
+			} else {
+				writer.print("jGIT::remote reply: " + pkt.substring(0, s));
+				writer.println();
+			}
+
+			pkt = pkt.substring(s + 1);
+		}
+		writer.flush();
+	}
+
+	/*
+	 * This method is borrowed from org.eclipse.jgit.pgm.AbstractFetchCommand.
+	 */
+	private String longTypeOf(ObjectReader reader, final TrackingRefUpdate u) {
+		final RefUpdate.Result r = u.getResult();
+		if (r == RefUpdate.Result.LOCK_FAILURE)
+			return "[lock fail]";
+		if (r == RefUpdate.Result.IO_FAILURE)
+			return "[i/o error]";
+		if (r == RefUpdate.Result.REJECTED)
+			return "[rejected]";
+		if (ObjectId.zeroId().equals(u.getNewObjectId()))
+			return "[deleted]";
+
+		if (r == RefUpdate.Result.NEW) {
+			if (u.getRemoteName().startsWith(Constants.R_HEADS))
+				return "[new branch]";
+			else if (u.getLocalName().startsWith(Constants.R_TAGS))
+				return "[new tag]";
+			return "[new]";
+		}
+
+		if (r == RefUpdate.Result.FORCED) {
+			final String aOld = safeAbbreviate(reader, u.getOldObjectId());
+			final String aNew = safeAbbreviate(reader, u.getNewObjectId());
+			return aOld + "..." + aNew;
+		}
+
+		if (r == RefUpdate.Result.FAST_FORWARD) {
+			final String aOld = safeAbbreviate(reader, u.getOldObjectId());
+			final String aNew = safeAbbreviate(reader, u.getNewObjectId());
+			return aOld + ".." + aNew;
+		}
+
+		if (r == RefUpdate.Result.NO_CHANGE)
+			return "[up to date]";
+		return "[" + r.name() + "]";
+	}
+
+	/*
+	 * This method is borrowed from org.eclipse.jgit.pgm.AbstractFetchCommand.
+	 */
+	private String safeAbbreviate(ObjectReader reader, ObjectId id) {
+		try {
+			return reader.abbreviate(id).name();
+		} catch (IOException cannotAbbreviate) {
+			return id.name();
+		}
+	}
+
+	/*
+	 * This method is borrowed from org.eclipse.jgit.pgm.AbstractFetchCommand.
+	 */
+	String abbreviateRef(String dst, boolean abbreviateRemote) {
+		if (dst.startsWith(Constants.R_HEADS))
+			dst = dst.substring(Constants.R_HEADS.length());
+		else if (dst.startsWith(Constants.R_TAGS))
+			dst = dst.substring(Constants.R_TAGS.length());
+		else if (abbreviateRemote && dst.startsWith(Constants.R_REMOTES))
+			dst = dst.substring(Constants.R_REMOTES.length());
+		return dst;
+	}
+
+	/*
+	 * This method is borrowed from org.eclipse.jgit.pgm.AbstractFetchCommand.
+	 */
+	private static char shortTypeOf(final RefUpdate.Result r) {
+		if (r == RefUpdate.Result.LOCK_FAILURE)
+			return '!';
+		if (r == RefUpdate.Result.IO_FAILURE)
+			return '!';
+		if (r == RefUpdate.Result.NEW)
+			return '*';
+		if (r == RefUpdate.Result.FORCED)
+			return '+';
+		if (r == RefUpdate.Result.FAST_FORWARD)
+			return ' ';
+		if (r == RefUpdate.Result.REJECTED)
+			return '!';
+		if (r == RefUpdate.Result.NO_CHANGE)
+			return '=';
+		return ' ';
+	}
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2011 Ronald Kurniawan.
+ *
+ * This file is part of CodeTraq.
+ *
+ * CodeTraq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CodeTraq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CodeTraq. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.mobid.codetraq.runnables;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import net.mobid.codetraq.utils.DbUtility;
+import net.mobid.codetraq.utils.LogService;
+
+/**
+ * This class is a small embedded HTTP listener that receives post-commit (svn)
+ * and post-receive (git) hook calls. A hook call triggers an immediate check of
+ * the matching server, so new revisions are picked up without waiting for the
+ * next poll. Servers that have called in at least once are afterwards only
+ * polled at the longest interval, as a fallback for missed hook calls.
+ * <p>The following requests are understood:</p>
+ * <ul>
+ * <li><code>POST /hook?server=&lt;short name or address&gt;[&amp;token=..]</code> - checks a server
+ * now; other methods are answered with 405, so a crawler or a prefetching browser
+ * cannot trigger checks</li>
+ * <li><code>/schedule[?token=..]</code> - returns the current schedule of server checks, and
+ * the number of checks running and waiting</li>
+ * <li><code>/repositories[?token=..]</code> - returns the pack and loose object counts of
+ * the local git repositories, if maintenance is enabled</li>
+ * <li><code>/storage[?token=..]</code> - returns the commit counts and times of the database</li>
+ * </ul>
+ * <p>For example, a post-receive hook can simply run
+ * <code>curl -X POST "http://localhost:8787/hook?server=myproject"</code>.</p>
+ *
+ * @author Ronald Kurniawan
+ * @version 0.1
+ */
+public class HookListener {
+
+	private HttpServer _server = null;
+
+	private ExecutorService _handlers = null;
+
+	private ServerTracker _tracker = null;
+
+	private String _token = null;
+
+	private MaintenanceJob _maintenance = null;
+
+	private DbUtility _db = null;
+
+	private CheckerExecutor _checkers = null;
+
+	private final int STOP_DELAY_IN_SECONDS = 1;
+
+	/**
+	 * Creates a new HookListener.
+	 * @param tracker - the <code>ServerTracker</code> that performs the checks
+	 * @param token - a shared secret every request must carry, or <code>null</code>
+	 * if requests need no token
+	 */
+	public HookListener(ServerTracker tracker, String token) {
+		_tracker = tracker;
+		_token = token;
+	}
+
+	/**
+	 * Sets the maintenance job whose counts are returned by "/repositories".
+	 * @param maintenance - a <code>MaintenanceJob</code> object
+	 */
+	public void setMaintenanceJob(MaintenanceJob maintenance) {
+		_maintenance = maintenance;
+	}
+
+	/**
+	 * Sets the database whose commit counts are returned by "/storage".
+	 * @param db - a <code>DbUtility</code> object
+	 */
+	public void setDatabase(DbUtility db) {
+		_db = db;
+	}
+
+	/**
+	 * Sets the executor whose running and waiting checks are returned by "/schedule".
+	 * @param checkers - a <code>CheckerExecutor</code> object
+	 */
+	public void setCheckerExecutor(CheckerExecutor checkers) {
+		_checkers = checkers;
+	}
+
+	/**
+	 * Starts listening for hook calls.
+	 * @param host - address to bind to, or <code>null</code> to listen on all addresses
+	 * @param port - port to listen on
+	 * @throws IOException - if the port cannot be opened
+	 */
+	public void start(String host, int port) throws IOException {
+		InetSocketAddress address = host == null ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+		_server = HttpServer.create(address, 0);
+		_server.createContext("/hook", new HookHandler());
+		_server.createContext("/schedule", new ScheduleHandler());
+		_server.createContext("/repositories", new RepositoriesHandler());
+		_server.createContext("/storage", new StorageHandler());
+		_handlers = Executors.newSingleThreadExecutor();
+		_server.setExecutor(_handlers);
+		_server.start();
+		LogService.writeMessage("Listening for repository hooks on port " + port);
+	}
+
+	/**
+	 * Stops listening for hook calls.
+	 */
+	public void stop() {
+		if (_server != null) {
+			_server.stop(STOP_DELAY_IN_SECONDS);
+			_server = null;
+		}
+		if (_handlers != null) {
+			_handlers.shutdown();
+			_handlers = null;
+		}
+	}
+
+	/*
+	 * Parses the query string of a request into a map of parameter names and values.
+	 */
+	private Map<String, String> getParameters(HttpExchange exchange) throws UnsupportedEncodingException {
+		Map<String, String> parameters = new HashMap<String, String>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null) {
+			return parameters;
+		}
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0) {
+				parameters.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+					URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+			}
+		}
+		return parameters;
+	}
+
+	/*
+	 * Checks the token of a request, if we require one.
+	 */
+	private boolean isAuthorised(Map<String, String> parameters) {
+		return _token == null || _token.equals(parameters.get("token"));
+	}
+
+	/*
+	 * Sends a plain text response and closes the exchange.
+	 */
+	private void respond(HttpExchange exchange, int status, String body) throws IOException {
+		// hook clients often send a body we do not need; drain it before answering
+		InputStream in = exchange.getRequestBody();
+		byte[] buffer = new byte[1024];
+		while (in.read(buffer) != -1) {
+			// discard
+		}
+		in.close();
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	/*
+	 * Handles hook calls.
+	 */
+	class HookHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+					exchange.getResponseHeaders().set("Allow", "POST");
+					respond(exchange, 405, "Use POST to call the hook\n");
+					return;
+				}
+				Map<String, String> parameters = getParameters(exchange);
+				if (!isAuthorised(parameters)) {
+					respond(exchange, 403, "Invalid token\n");
+					return;
+				}
+				String server = parameters.get("server");
+				if (server == null || server.length() == 0) {
+					respond(exchange, 400, "Missing parameter 'server'\n");
+					return;
+				}
+				if (!_tracker.checkNow(server)) {
+					respond(exchange, 404, "Unknown server " + server + "\n");
+					return;
+				}
+				LogService.writeMessage("Hook call received for " + server + " from "
+					+ exchange.getRemoteAddress());
+				respond(exchange, 202, "Check of " + server + " scheduled\n");
+			} catch (IOException ex) {
+				LogService.getLogger(HookListener.class.getName()).log(Level.SEVERE, null, ex);
+				LogService.writeLog(Level.SEVERE, ex);
+				throw ex;
+			}
+		}
+	}
+
+	/*
+	 * Returns the current schedule of server checks, and the state of the checker
+	 * queues.
+	 */
+	class ScheduleHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			Map<String, String> parameters = getParameters(exchange);
+			if (!isAuthorised(parameters)) {
+				respond(exchange, 403, "Invalid token\n");
+				return;
+			}
+			String schedule = _tracker.dumpSchedule();
+			if (_checkers != null) {
+				schedule += _checkers.dumpQueues();
+			}
+			respond(exchange, 200, schedule);
+		}
+	}
+
+	/*
+	 * Returns the pack and loose object counts of the local git repositories.
+	 */
+	class RepositoriesHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			Map<String, String> parameters = getParameters(exchange);
+			if (!isAuthorised(parameters)) {
+				respond(exchange, 403, "Invalid token\n");
+				return;
+			}
+			if (_maintenance == null) {
+				respond(exchange, 404, "Repository maintenance is disabled\n");
+				return;
+			}
+			respond(exchange, 200, _maintenance.dumpRepositories());
+		}
+	}
+
+	/*
+	 * Returns the commit counts and times of the database.
+	 */
+	class StorageHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			Map<String, String> parameters = getParameters(exchange);
+			if (!isAuthorised(parameters)) {
+				respond(exchange, 403, "Invalid token\n");
+				return;
+			}
+			if (_db == null) {
+				respond(exchange, 404, "No database\n");
+				return;
+			}
+			respond(exchange, 200, _db.dumpStorageStats() + "\n");
+		}
+	}
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2011 Ronald Kurniawan.
+ *
+ * This file is part of CodeTraq.
+ *
+ * CodeTraq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CodeTraq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CodeTraq. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.mobid.codetraq.runnables;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import net.mobid.codetraq.VersionControlType;
+import net.mobid.codetraq.persistence.ServerDTO;
+import net.mobid.codetraq.persistence.SettingsDTO;
+import net.mobid.codetraq.utils.LogService;
+
+/**
+ * This class keeps the local git copies in "gitrepos" in shape. Every fetch adds
+ * a small pack or a batch of loose objects, and nothing ever removes them, so
+ * walks and diffs slow down as jgit has to search more and more files.
+ * <p>The job wakes up every few minutes and counts the packs and loose objects of
+ * every local copy. A copy that has too many of either is repacked and pruned with
+ * "git gc", as jgit cannot repack. Repacking runs on a few low priority threads,
+ * never while the server is being checked, and only when the next check of the
+ * server is not due soon. The repository is then reopened by the next check, so
+ * the new pack index is used.</p>
+ *
+ * @author Ronald Kurniawan
+ * @version 0.1
+ */
+public class MaintenanceJob implements Runnable {
+
+	private List<ServerDTO> _servers = null;
+
+	private ServerTracker _tracker = null;
+
+	private CheckerExecutor _checkers = null;
+
+	private RepositoryRegistry _repositories = null;
+
+	private SettingsDTO _settings = null;
+
+	private ExecutorService _repackers = null;
+
+	// servers being repacked at the moment
+	private final Set<String> _repacking = Collections.synchronizedSet(new HashSet<String>());
+
+	// guarded by itself: short name -> latest counts
+	private final Map<String, RepositoryStats> _stats = new TreeMap<String, RepositoryStats>();
+
+	private boolean _gitMissing = false;
+
+	// a repack is only started if the next check of the server is further away than this
+	private final long QUIET_WINDOW_IN_MILLIS = 5 * 60 * 1000L;
+
+	/**
+	 * Creates a new MaintenanceJob.
+	 * @param servers - a <code>List</code> of <code>ServerDTO</code> objects
+	 * @param tracker - the <code>ServerTracker</code> that schedules the checks
+	 * @param checkers - the <code>CheckerExecutor</code> that runs the checks
+	 * @param repositories - the <code>RepositoryRegistry</code> holding open git repositories
+	 * @param settings - a <code>SettingsDTO</code> object holding the maintenance thresholds
+	 */
+	public MaintenanceJob(List<ServerDTO> servers, ServerTracker tracker, CheckerExecutor checkers,
+			RepositoryRegistry repositories, SettingsDTO settings) {
+		_servers = servers;
+		_tracker = tracker;
+		_checkers = checkers;
+		_repositories = repositories;
+		_settings = settings;
+		_repackers = Executors.newFixedThreadPool(Math.max(1, settings.getGitRepackers()), new ThreadFactory() {
+
+			private final AtomicInteger _count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "repacker-" + _count.incrementAndGet());
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Counts the packs and loose objects of every local git copy, and repacks the
+	 * ones that crossed a threshold, then sleeps until the next round.
+	 */
+	public void run() {
+		Thread currentThread = Thread.currentThread();
+		try {
+			while (true) {
+				Thread.yield();
+				if (currentThread.isInterrupted()) {
+					throw new InterruptedException("Time to pack up and go home");
+				}
+				for (ServerDTO server : _servers) {
+					if (server.getServerType() == VersionControlType.GIT) {
+						inspect(server);
+					}
+				}
+				Thread.sleep(_settings.getGitMaintenance() * 60 * 1000L);
+			}
+		} catch (InterruptedException ex) {
+			LogService.writeMessage("MaintenanceJob interrupted");
+		} finally {
+			_repackers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Returns a readable list of the pack and loose object counts of every local git
+	 * copy, as found in the latest round.
+	 * @return one line per local copy
+	 */
+	public String dumpRepositories() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Local git repositories (").append(_repositories.getOpenCount()).append(" open):\n");
+		synchronized (_stats) {
+			for (RepositoryStats stats : _stats.values()) {
+				sb.append("  ").append(stats.shortName)
+					.append(" packs=").append(stats.packs)
+					.append(" loose=").append(stats.loose)
+					.append(" repacks=").append(stats.repacks)
+					.append(_repacking.contains(stats.shortName) ? " (repacking)" : "")
+					.append("\n");
+			}
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * Counts the packs and loose objects of a local copy, and queues a repack if
+	 * there are too many.
+	 */
+	private void inspect(ServerDTO server) {
+		File gitDir = GitMirror.getGitDirectory(server);
+		File objects = new File(gitDir, "objects");
+		if (!objects.isDirectory()) {
+			return;
+		}
+		int packs = countPacks(objects);
+		int loose = countLooseObjects(objects);
+		RepositoryStats stats;
+		synchronized (_stats) {
+			stats = _stats.get(server.getShortName());
+			if (stats == null) {
+				stats = new RepositoryStats(server.getShortName());
+				_stats.put(server.getShortName(), stats);
+			}
+			stats.packs = packs;
+			stats.loose = loose;
+		}
+		if (packs <= _settings.getGitMaxPacks() && loose <= _settings.getGitMaxLoose()) {
+			return;
+		}
+		if (_gitMissing) {
+			return;
+		}
+		long nextCheck = _tracker.getNextCheckTime(server.getServerAddress());
+		if (nextCheck >= 0 && nextCheck - System.currentTimeMillis() < QUIET_WINDOW_IN_MILLIS) {
+			LogService.writeMessage("Postponing repack of " + server.getShortName() + ", it is due for a check");
+			return;
+		}
+		if (_repacking.add(server.getShortName())) {
+			LogService.writeMessage("Queueing repack of " + server.getShortName() + " (" + packs
+				+ " packs, " + loose + " loose objects)");
+			_repackers.execute(new Repack(server, stats));
+		}
+	}
+
+	/*
+	 * Counts the pack files of an object directory.
+	 */
+	private int countPacks(File objects) {
+		String[] names = new File(objects, "pack").list();
+		int count = 0;
+		if (names != null) {
+			for (String name : names) {
+				if (name.endsWith(".pack")) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * Counts the loose objects of an object directory.
+	 */
+	private int countLooseObjects(File objects) {
+		File[] dirs = objects.listFiles();
+		int count = 0;
+		if (dirs != null) {
+			for (File dir : dirs) {
+				if (dir.isDirectory() && dir.getName().length() == 2) {
+					String[] names = dir.list();
+					count += names == null ? 0 : names.length;
+				}
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * Repacks and prunes one local copy with "git gc". The server is marked as busy
+	 * in the CheckerExecutor meanwhile, so no check runs against a repository that
+	 * is being rewritten.
+	 */
+	class Repack implements Runnable {
+
+		private ServerDTO _server = null;
+
+		private RepositoryStats _stats = null;
+
+		Repack(ServerDTO server, RepositoryStats stats) {
+			_server = server;
+			_stats = stats;
+		}
+
+		public void run() {
+			String key = "tracker:" + _server.getServerAddress();
+			try {
+				if (!_checkers.reserve(key)) {
+					LogService.writeMessage("Postponing repack of " + _server.getShortName() + ", it is being checked");
+					return;
+				}
+				// wait for running walks and fetches of the copy to finish
+				Lock lock = _repositories.getLock(_server).writeLock();
+				lock.lock();
+				try {
+					if (gc(GitMirror.getGitDirectory(_server))) {
+						// drop the open repository, so the next check reads the new pack index
+						_repositories.refresh(_server);
+						synchronized (MaintenanceJob.this._stats) {
+							_stats.repacks++;
+						}
+					}
+				} finally {
+					lock.unlock();
+					_checkers.unreserve(key);
+				}
+			} finally {
+				_repacking.remove(_server.getShortName());
+			}
+		}
+
+		/*
+		 * Runs "git gc" on a repository and logs its output.
+		 */
+		private boolean gc(File gitDir) {
+			List<String> command = new ArrayList<String>();
+			command.add("git");
+			command.add("--git-dir=" + gitDir.getAbsolutePath());
+			command.add("gc");
+			command.add("--quiet");
+			try {
+				LogService.writeMessage("Repacking " + _server.getShortName());
+				Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+				BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+				try {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						LogService.writeMessage("git gc " + _server.getShortName() + ": " + line);
+					}
+				} finally {
+					reader.close();
+				}
+				int exit = process.waitFor();
+				if (exit != 0) {
+					LogService.writeMessage("Repacking " + _server.getShortName() + " failed with exit code " + exit);
+					return false;
+				}
+				LogService.writeMessage("Repacked " + _server.getShortName());
+				return true;
+			} catch (IOException ex) {
+				// most likely there is no git executable on this machine
+				_gitMissing = true;
+				LogService.writeMessage("Cannot run git, repacking local repositories is disabled");
+				LogService.getLogger(MaintenanceJob.class.getName()).log(Level.SEVERE, null, ex);
+				LogService.writeLog(Level.SEVERE, ex);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			return false;
+		}
+	}
+
+	/*
+	 * The latest counts for one local copy.
+	 */
+	static class RepositoryStats {
+
+		final String shortName;
+		int packs = 0;
+		int loose = 0;
+		int repacks = 0;
+
+		RepositoryStats(String shortName) {
+			this.shortName = shortName;
+		}
+	}
+}
@@ -19,6 +19,7 @@
 package net.mobid.codetraq.runnables;
 
 import java.util.List;
+import java.util.logging.Level;
 import net.mobid.codetraq.ConnectionType;
 import net.mobid.codetraq.ITalker;
 import net.mobid.codetraq.persistence.MessageDTO;
@@ -96,59 +97,14 @@ public class MessageTracker implements Runnable {
 				if (currentThread.isInterrupted()) {
 					throw new InterruptedException("Time to pack up and go home");
 				}
-				_db.deleteAllSentMessages();
-				List<MessageDTO> list = _db.getAllUnsentMessages();
-				for (MessageDTO m : list) {
-					if (m.getRecipient().getNotificationType() == ConnectionType.GOOGLE_TALK ||
-						m.getRecipient().getNotificationType() == ConnectionType.JABBER) {
-						boolean status = _xmppTalker.talk(m.getRecipient().getNotificationId(),
-							m.generateMessage());
-						if (!status) {
-							LogService.writeMessage("Sending message to " + m.getRecipient().getNotificationId() + " failed.");
-							_db.logCheckRetries(m.getServerName(), m.getTimestamp());
-							_db.updateMessageRetries(m);
-							_db.logCheckRetries(m.getServerName(), m.getTimestamp());
-						} else {
-							// delete the message if successfuly sent
-							_db.updateMessageSent(m);
-							LogService.writeMessage("Sending message to " + m.getRecipient().getNotificationId() + " successful");
-							_db.deleteMessage(m);
-							_db.logCheckDelete(m.getServerName(), m.getTimestamp());
-						}
-					} else if (m.getRecipient().getNotificationType() == ConnectionType.MSN) {
-						boolean status = _msnTalker.talk(m.getRecipient().getNotificationId(),
-							m.generateMessage());
-						if (!status) {
-							LogService.writeMessage("Sending message to " + m.getRecipient().getNotificationId() + " failed.");
-							_db.logCheckRetries(m.getServerName(), m.getTimestamp());
-							_db.updateMessageRetries(m);
-							_db.logCheckRetries(m.getServerName(), m.getTimestamp());
-						} else {
-							// delete the message if successfuly sent
-							_db.updateMessageSent(m);
-							LogService.writeMessage("Sending message to " + m.getRecipient().getNotificationId() + " successful");
-							_db.deleteMessage(m);
-							_db.logCheckDelete(m.getServerName(), m.getTimestamp());
-						}
-					} else if (m.getRecipient().getNotificationType() == ConnectionType.EMAIL) {
-						((EmailTalker)_mailTalker).setMessage(m);
-						boolean status = _mailTalker.talk(m.getRecipient().getNotificationId(),
-							m.generateMessage());
-						if (!status) {
-							LogService.writeMessage("Sending email to " + m.getRecipient().getNotificationId() +
-								" failed.");
-							_db.logCheckRetries(m.getServerName(), m.getTimestamp());
-							_db.updateMessageRetries(m);
-							_db.logCheckRetries(m.getServerName(), m.getTimestamp());
-						} else {
-							// delete the message if successfuly sent
-							_db.updateMessageSent(m);
-							LogService.writeMessage("Sending message to " + m.getRecipient().getNotificationId() +
-								" successful.");
-							_db.deleteMessage(m);
-							_db.logCheckDelete(m.getServerName(), m.getTimestamp());
-						}
-					}
+				// not batched: every sent message is flushed from the outbox right
+				// away, so a crash can never send it a second time
+				try {
+					sendMessages();
+				} catch (RuntimeException ex) {
+					// the round is tried again after MESSAGE_ROUND minutes
+					LogService.getLogger(MessageTracker.class.getName()).log(Level.SEVERE, null, ex);
+					LogService.writeLog(Level.SEVERE, ex);
 				}
 				Thread.sleep(MESSAGE_ROUND * 60 * 1000);
 			}
@@ -158,4 +114,65 @@ public class MessageTracker implements Runnable {
 		}
 	}
 
+	/*
+	 * Sends every unsent message to its recipient, and removes the messages that
+	 * were sent.
+	 */
+	private void sendMessages() {
+		_db.deleteAllSentMessages();
+		List<MessageDTO> list = _db.getAllUnsentMessages();
+		for (MessageDTO m : list) {
+			if (m.getRecipient().getNotificationType() == ConnectionType.GOOGLE_TALK ||
+				m.getRecipient().getNotificationType() == ConnectionType.JABBER) {
+				boolean status = _xmppTalker.talk(m.getRecipient().getNotificationId(),
+					m.generateMessage());
+				if (!status) {
+					LogService.writeMessage("Sending message to " + m.getRecipient().getNotificationId() + " failed.");
+					_db.logCheckRetries(m.getServerName(), m.getTimestamp());
+					_db.updateMessageRetries(m);
+					_db.logCheckRetries(m.getServerName(), m.getTimestamp());
+				} else {
+					// delete the message if successfuly sent
+					_db.updateMessageSent(m);
+					LogService.writeMessage("Sending message to " + m.getRecipient().getNotificationId() + " successful");
+					_db.deleteMessage(m);
+					_db.logCheckDelete(m.getServerName(), m.getTimestamp());
+				}
+			} else if (m.getRecipient().getNotificationType() == ConnectionType.MSN) {
+				boolean status = _msnTalker.talk(m.getRecipient().getNotificationId(),
+					m.generateMessage());
+				if (!status) {
+					LogService.writeMessage("Sending message to " + m.getRecipient().getNotificationId() + " failed.");
+					_db.logCheckRetries(m.getServerName(), m.getTimestamp());
+					_db.updateMessageRetries(m);
+					_db.logCheckRetries(m.getServerName(), m.getTimestamp());
+				} else {
+					// delete the message if successfuly sent
+					_db.updateMessageSent(m);
+					LogService.writeMessage("Sending message to " + m.getRecipient().getNotificationId() + " successful");
+					_db.deleteMessage(m);
+					_db.logCheckDelete(m.getServerName(), m.getTimestamp());
+				}
+			} else if (m.getRecipient().getNotificationType() == ConnectionType.EMAIL) {
+				((EmailTalker)_mailTalker).setMessage(m);
+				boolean status = _mailTalker.talk(m.getRecipient().getNotificationId(),
+					m.generateMessage());
+				if (!status) {
+					LogService.writeMessage("Sending email to " + m.getRecipient().getNotificationId() +
+						" failed.");
+					_db.logCheckRetries(m.getServerName(), m.getTimestamp());
+					_db.updateMessageRetries(m);
+					_db.logCheckRetries(m.getServerName(), m.getTimestamp());
+				} else {
+					// delete the message if successfuly sent
+					_db.updateMessageSent(m);
+					LogService.writeMessage("Sending message to " + m.getRecipient().getNotificationId() +
+						" successful.");
+					_db.deleteMessage(m);
+					_db.logCheckDelete(m.getServerName(), m.getTimestamp());
+				}
+			}
+		}
+	}
+
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2011 Ronald Kurniawan.
+ *
+ * This file is part of CodeTraq.
+ *
+ * CodeTraq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CodeTraq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CodeTraq. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.mobid.codetraq.runnables;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import net.mobid.codetraq.utils.Utilities;
+
+/**
+ * This class keeps track of when each server is due for its next check. Servers
+ * are kept in a queue ordered by their due time, so a tracker can sleep until
+ * exactly the moment the next server is due and then only look at the servers
+ * that are actually due, rather than sweeping through every server.
+ * <p>In "spread" mode the first check of each server is offset by a hash of its
+ * key, so checks are distributed evenly over the interval, and every following
+ * check is moved by a bounded random jitter so they do not drift back together.</p>
+ * <p>Changes to the schedule are made while holding the lock on the scheduler;
+ * waiting for due servers is not, so a waiting tracker never blocks them.</p>
+ *
+ * @author Ronald Kurniawan
+ * @version 0.1
+ */
+public class PollScheduler {
+
+	private final DelayQueue<ScheduledPoll> _queue = new DelayQueue<ScheduledPoll>();
+
+	// the current entry for each key; older entries left in the queue are ignored
+	private final ConcurrentMap<String, ScheduledPoll> _entries = new ConcurrentHashMap<String, ScheduledPoll>();
+
+	private final String _name;
+
+	private boolean _spread = false;
+
+	private int _jitter = 0;
+
+	private final Random _random = new Random();
+
+	/**
+	 * Creates a new PollScheduler.
+	 * @param name - name of the schedule, used when dumping it
+	 */
+	public PollScheduler(String name) {
+		_name = name;
+	}
+
+	/**
+	 * Switches "spread" mode on or off.
+	 * @param spread - <code>true</code> to spread checks over the interval
+	 * @param jitter - maximum random deviation of later checks, as a percentage
+	 * of the interval
+	 */
+	public void setSpread(boolean spread, int jitter) {
+		_spread = spread;
+		_jitter = jitter;
+	}
+
+	/**
+	 * Schedules the first check of a server. In "spread" mode the check is offset
+	 * into the interval by a hash of the key, otherwise it is due at the given time.
+	 * @param key - identifies the server, normally its address
+	 * @param dueTime - time the check would be due without spreading
+	 * @param interval - polling interval of the server in miliseconds
+	 */
+	public void scheduleFirst(String key, long dueTime, long interval) {
+		if (_spread && interval > 0) {
+			dueTime = System.currentTimeMillis() + getSpreadOffset(key, interval);
+		}
+		schedule(key, dueTime);
+	}
+
+	/**
+	 * Schedules the next check of a server after it has been checked. In "spread"
+	 * mode a random jitter of up to the configured percentage of the interval is
+	 * added or subtracted. If an earlier check of the server was requested while it
+	 * was being checked, that earlier check is kept.
+	 * @param key - identifies the server, normally its address
+	 * @param lastChecked - time the server was last checked
+	 * @param interval - polling interval of the server in miliseconds
+	 */
+	public void scheduleNext(String key, long lastChecked, long interval) {
+		long dueTime = lastChecked + interval;
+		if (_spread && _jitter > 0) {
+			long bound = interval * _jitter / 100;
+			if (bound > 0) {
+				dueTime += (long) ((_random.nextDouble() * 2 - 1) * bound);
+			}
+		}
+		// a hook call may schedule an earlier check at the same moment, so compare
+		// and replace under the same lock that schedule takes
+		synchronized (this) {
+			ScheduledPoll pending = _entries.get(key);
+			if (pending != null && pending.getDueTime() <= dueTime) {
+				return;
+			}
+			schedule(key, dueTime);
+		}
+	}
+
+	/**
+	 * Schedules (or reschedules) a server check.
+	 * @param key - identifies the server, normally its address
+	 * @param dueTime - time the check is due, in miliseconds since epoch
+	 */
+	public synchronized void schedule(String key, long dueTime) {
+		ScheduledPoll poll = new ScheduledPoll(key, dueTime);
+		_entries.put(key, poll);
+		_queue.put(poll);
+	}
+
+	/**
+	 * Removes a server from the schedule.
+	 * @param key - identifies the server, normally its address
+	 */
+	public synchronized void cancel(String key) {
+		_entries.remove(key);
+	}
+
+	/**
+	 * Waits until at least one server is due, then returns every server that is
+	 * due at that moment. Returned servers are removed from the schedule and
+	 * should be rescheduled once they have been checked.
+	 * @return a <code>List</code> of keys of the servers that are due
+	 * @throws InterruptedException - if the waiting thread is interrupted
+	 */
+	public List<String> takeDue() throws InterruptedException {
+		List<String> due = new ArrayList<String>();
+		while (due.isEmpty()) {
+			addIfCurrent(_queue.take(), due);
+			ScheduledPoll next = _queue.poll();
+			while (next != null) {
+				addIfCurrent(next, due);
+				next = _queue.poll();
+			}
+		}
+		return due;
+	}
+
+	/**
+	 * Returns the time a server is due for its next check.
+	 * @param key - identifies the server, normally its address
+	 * @return due time in miliseconds since epoch, or -1 if the server is not
+	 * scheduled
+	 */
+	public long getDueTime(String key) {
+		ScheduledPoll poll = _entries.get(key);
+		if (poll == null) {
+			return -1;
+		}
+		return poll.getDueTime();
+	}
+
+	/**
+	 * Returns the number of servers currently scheduled.
+	 * @return number of scheduled servers
+	 */
+	public int size() {
+		return _entries.size();
+	}
+
+	/**
+	 * Returns a readable dump of the schedule, one server per line in the order
+	 * in which they are due.
+	 * @return the current schedule
+	 */
+	public String dumpSchedule() {
+		List<ScheduledPoll> polls = new ArrayList<ScheduledPoll>(_entries.values());
+		Collections.sort(polls, new Comparator<ScheduledPoll>() {
+
+			public int compare(ScheduledPoll o1, ScheduledPoll o2) {
+				return o1.compareTo(o2);
+			}
+		});
+		String cr = System.getProperty("line.separator");
+		StringBuilder sb = new StringBuilder();
+		sb.append("Schedule '").append(_name).append("' (").append(polls.size()).append(" servers, ")
+			.append(_spread ? "spread, jitter " + _jitter + "%" : "fixed").append(")").append(cr);
+		for (ScheduledPoll poll : polls) {
+			sb.append("  ").append(Utilities.getFormattedTime(poll.getDueTime()))
+				.append(" (in ").append(poll.getDelay(TimeUnit.SECONDS)).append("s) ")
+				.append(poll.getKey()).append(cr);
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * Returns a stable offset into the interval for a key. The same key always gets
+	 * the same offset, while different keys are spread evenly across the interval.
+	 */
+	private long getSpreadOffset(String key, long interval) {
+		int h = key.hashCode();
+		// spread the bits of String.hashCode() before taking the modulo
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return (h & 0x7fffffffL) % interval;
+	}
+
+	/*
+	 * Adds the key of a poll to the due list, unless the poll has been replaced or
+	 * cancelled since it was queued.
+	 */
+	private void addIfCurrent(ScheduledPoll poll, List<String> due) {
+		if (_entries.remove(poll.getKey(), poll)) {
+			due.add(poll.getKey());
+		}
+	}
+
+	/*
+	 * A single scheduled server check.
+	 */
+	static class ScheduledPoll implements Delayed {
+
+		private final String _key;
+
+		private final long _dueTime;
+
+		ScheduledPoll(String key, long dueTime) {
+			_key = key;
+			_dueTime = dueTime;
+		}
+
+		String getKey() {
+			return _key;
+		}
+
+		long getDueTime() {
+			return _dueTime;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(_dueTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed o) {
+			long other = ((ScheduledPoll) o).getDueTime();
+			if (_dueTime == other) {
+				return 0;
+			} else if (_dueTime > other) {
+				return 1;
+			}
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2011 Ronald Kurniawan.
+ *
+ * This file is part of CodeTraq.
+ *
+ * CodeTraq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CodeTraq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CodeTraq. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.mobid.codetraq.runnables;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import net.mobid.codetraq.persistence.ServerDTO;
+import net.mobid.codetraq.utils.LogService;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepository;
+
+/**
+ * This class shares one open jgit <code>Repository</code> per local git copy,
+ * keyed by the server's short name. Opening a repository reads its pack indexes,
+ * so handing out the same instance to the mirror update, the revision walk and
+ * the diff of a check saves that work, and makes sure every repository is closed
+ * again.
+ * <p>Handles are reference counted: every <code>acquire</code> must be matched by
+ * a <code>release</code>. A repository nobody holds is kept open for the idle
+ * timeout, so the next check can reuse it, and is closed afterwards by a timer,
+ * even when no other repository is used in the meantime. With a timeout of zero
+ * it is closed as soon as it is released.</p>
+ * <p>Every local copy also has a read/write lock. Whatever changes the copy, such
+ * as a fetch, a pull or a repack, holds the write lock; whatever only reads it,
+ * such as a revision walk, holds the read lock. Reads share the copy, while a
+ * change waits for running reads to finish and has it to itself. The locks are
+ * fair, so a read that comes in during a change waits for the change to finish
+ * instead of seeing half updated refs.</p>
+ *
+ * @author Ronald Kurniawan
+ * @version 0.1
+ */
+public class RepositoryRegistry {
+
+	// guarded by this: short name -> open repository
+	private final Map<String, Handle> _handles = new HashMap<String, Handle>();
+
+	// guarded by this: short name -> lock on the local copy
+	private final Map<String, ReadWriteLock> _locks = new HashMap<String, ReadWriteLock>();
+
+	private long _idleTimeout = 0;
+
+	private Timer _evictor = null;
+
+	// how often idle repositories are looked for, at most
+	private final long EVICT_PERIOD = 60 * 1000L;
+
+	/**
+	 * Creates a new RepositoryRegistry.
+	 * @param idleTimeout - how long an unused repository is kept open, in miliseconds
+	 */
+	public RepositoryRegistry(long idleTimeout) {
+		_idleTimeout = idleTimeout;
+		if (_idleTimeout > 0) {
+			// a quiet registry still closes its idle repositories
+			_evictor = new Timer("git-repository-evictor", true);
+			long period = Math.min(EVICT_PERIOD, _idleTimeout);
+			_evictor.schedule(new TimerTask() {
+
+				public void run() {
+					evictIdleRepositories();
+				}
+			}, period, period);
+		}
+	}
+
+	/**
+	 * Returns the local repository of a server, opening it if needed. Each call
+	 * must be matched by a call to <code>release</code>.
+	 * @param server - a <code>ServerDTO</code> object
+	 * @return a <code>Repository</code> object
+	 * @throws IOException if there is no local copy yet, or it cannot be opened
+	 */
+	public Repository acquire(ServerDTO server) throws IOException {
+		List<Handle> expired;
+		Handle handle;
+		synchronized (this) {
+			expired = removeIdle();
+			handle = _handles.get(server.getShortName());
+			if (handle == null) {
+				File gitDir = GitMirror.getGitDirectory(server);
+				if (!new File(gitDir, "config").exists()) {
+					closeAll(expired);
+					throw new RepositoryNotFoundException(gitDir);
+				}
+				handle = new Handle(server.getShortName(), new FileRepository(gitDir));
+				_handles.put(server.getShortName(), handle);
+			}
+			handle.references++;
+		}
+		closeAll(expired);
+		return handle.repository;
+	}
+
+	/**
+	 * Hands back a repository obtained from <code>acquire</code>.
+	 * @param server - a <code>ServerDTO</code> object
+	 */
+	public void release(ServerDTO server) {
+		List<Handle> expired;
+		synchronized (this) {
+			Handle handle = _handles.get(server.getShortName());
+			if (handle != null && handle.references > 0) {
+				handle.references--;
+				handle.lastUsed = System.currentTimeMillis();
+			}
+			expired = removeIdle();
+		}
+		closeAll(expired);
+	}
+
+	/**
+	 * Returns the lock that coordinates changes and reads of the local copy of a
+	 * server. The same lock is returned for as long as this registry lives, whether
+	 * the repository is open or not.
+	 * @param server - a <code>ServerDTO</code> object
+	 * @return a <code>ReadWriteLock</code> object
+	 */
+	public synchronized ReadWriteLock getLock(ServerDTO server) {
+		ReadWriteLock lock = _locks.get(server.getShortName());
+		if (lock == null) {
+			lock = new ReentrantReadWriteLock(true);
+			_locks.put(server.getShortName(), lock);
+		}
+		return lock;
+	}
+
+	/**
+	 * Closes the repository of a server if nobody holds it, so the next
+	 * <code>acquire</code> opens it again and reads its packs afresh. This is used
+	 * after the repository has been repacked.
+	 * @param server - a <code>ServerDTO</code> object
+	 */
+	public void refresh(ServerDTO server) {
+		Handle handle;
+		synchronized (this) {
+			handle = _handles.get(server.getShortName());
+			if (handle == null || handle.references > 0) {
+				return;
+			}
+			_handles.remove(server.getShortName());
+		}
+		handle.repository.close();
+	}
+
+	/**
+	 * Returns the number of repositories currently open.
+	 * @return number of open repositories
+	 */
+	public synchronized int getOpenCount() {
+		return _handles.size();
+	}
+
+	/**
+	 * Returns the number of handles currently held on the repository of a server.
+	 * @param shortName - the server's short name
+	 * @return number of handles, zero if the repository is not open
+	 */
+	public synchronized int getHandleCount(String shortName) {
+		Handle handle = _handles.get(shortName);
+		return handle == null ? 0 : handle.references;
+	}
+
+	/**
+	 * Closes every repository that nobody holds and that has been idle for longer
+	 * than the idle timeout. This is run by a timer, so repositories are closed
+	 * even when no checks come in.
+	 */
+	public void evictIdleRepositories() {
+		List<Handle> expired;
+		synchronized (this) {
+			expired = removeIdle();
+		}
+		closeAll(expired);
+	}
+
+	/**
+	 * Closes every repository, whether it is still held or not. Should only be
+	 * called during shutdown.
+	 */
+	public void shutdown() {
+		if (_evictor != null) {
+			_evictor.cancel();
+		}
+		List<Handle> all;
+		synchronized (this) {
+			all = new ArrayList<Handle>(_handles.values());
+			_handles.clear();
+		}
+		closeAll(all);
+	}
+
+	/*
+	 * Takes every repository that nobody holds and that has been idle longer than
+	 * the idle timeout out of the registry. Must be called while holding the lock
+	 * on this registry.
+	 * @return the repositories to be closed
+	 */
+	private List<Handle> removeIdle() {
+		List<Handle> expired = new ArrayList<Handle>();
+		long now = System.currentTimeMillis();
+		Iterator<Handle> it = _handles.values().iterator();
+		while (it.hasNext()) {
+			Handle handle = it.next();
+			if (handle.references == 0 && now - handle.lastUsed >= _idleTimeout) {
+				it.remove();
+				expired.add(handle);
+			}
+		}
+		return expired;
+	}
+
+	/*
+	 * Closes repositories taken out of the registry.
+	 */
+	private void closeAll(List<Handle> handles) {
+		for (Handle handle : handles) {
+			if (_idleTimeout > 0) {
+				LogService.writeMessage("Closing idle repository " + handle.shortName);
+			}
+			handle.repository.close();
+		}
+	}
+
+	/*
+	 * An open repository together with the number of handles held on it and the
+	 * time it was last released.
+	 */
+	private static class Handle {
+
+		final String shortName;
+		final Repository repository;
+		int references = 0;
+		long lastUsed = System.currentTimeMillis();
+
+		Handle(String shortName, Repository repository) {
+			this.shortName = shortName;
+			this.repository = repository;
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011 Ronald Kurniawan.
+ *
+ * This file is part of CodeTraq.
+ *
+ * CodeTraq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CodeTraq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CodeTraq. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.mobid.codetraq.runnables;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import net.mobid.codetraq.VersionControlChecker;
+import net.mobid.codetraq.VersionControlType;
+import net.mobid.codetraq.persistence.MessageDTO;
+import net.mobid.codetraq.persistence.ServerDTO;
+import net.mobid.codetraq.persistence.ServerRevision;
+import net.mobid.codetraq.persistence.UserDTO;
+import net.mobid.codetraq.utils.DbUtility;
+import net.mobid.codetraq.utils.DbUtility.DbException;
+import net.mobid.codetraq.utils.LogService;
+import net.mobid.codetraq.utils.SubscriptionIndex;
+
+/**
+ * This class hands a newly detected revision to every user subscribed to the
+ * server it belongs to. It is called by the <code>ServerTracker</code> as soon
+ * as a new revision has been stored, so users are notified in the same pass that
+ * detected the revision, and all of their messages are saved in one batch.
+ *
+ * @author Ronald Kurniawan
+ * @version 0.1
+ */
+public class RevisionDispatcher {
+
+	private DbUtility _db = null;
+
+	private SubscriptionIndex _index = null;
+
+	/**
+	 * Creates a new RevisionDispatcher.
+	 * @param db - an instance of <code>DbUtility</code>
+	 * @param index - the <code>SubscriptionIndex</code> listing the subscribers of each server
+	 */
+	public RevisionDispatcher(DbUtility db, SubscriptionIndex index) {
+		_db = db;
+		_index = index;
+	}
+
+	/**
+	 * Hands a revision to every subscriber of its server. Subscribers that do not
+	 * have this revision yet get a new message. Their user revisions are only
+	 * updated after the messages have been saved, so a failed save leaves them to be
+	 * notified on the next pass.
+	 * @param sr - the <code>ServerRevision</code> holding the new revision
+	 * @return the number of messages created
+	 */
+	public int publish(ServerRevision sr) {
+		ServerDTO server = _index.getServer(sr.getServerAddress());
+		if (server == null) {
+			return 0;
+		}
+		List<MessageDTO> batch = new ArrayList<MessageDTO>();
+		List<VersionControlChecker> notified = new ArrayList<VersionControlChecker>();
+		for (UserDTO user : _index.getSubscribers(sr.getServerAddress())) {
+			VersionControlChecker checker = createChecker(server, user);
+			if (checker == null) {
+				continue;
+			}
+			MessageDTO message = checker.createRevisionMessage(sr);
+			if (message != null) {
+				batch.add(message);
+				notified.add(checker);
+			}
+		}
+		if (batch.isEmpty()) {
+			return 0;
+		}
+		try {
+			int saved = _db.saveMessages(batch);
+			LogService.writeMessage("Adding " + saved + " Message object(s) for " + sr.getServerAddress() +
+				" (rev " + sr.getLastRevisionId() + ") to database.");
+		} catch (DbException ex) {
+			LogService.getLogger(RevisionDispatcher.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+			return 0;
+		}
+		for (VersionControlChecker checker : notified) {
+			checker.updateUserRevision(sr);
+		}
+		return batch.size();
+	}
+
+	/**
+	 * Hands the latest known revision of every server to its subscribers. This is
+	 * run once at startup, for users that missed a revision while the daemon was
+	 * down or that have just subscribed.
+	 */
+	public void catchUp() {
+		_db.beginBatch();
+		try {
+			for (String address : _index.getServerAddresses()) {
+				ServerRevision sr = _db.getServerRevisionByAddress(address);
+				if (sr != null && sr.getLastRevisionId() != null) {
+					publish(sr);
+				}
+			}
+		} finally {
+			try {
+				_db.endBatch();
+			} catch (RuntimeException ex) {
+				// nothing was committed, so the next start catches up again
+				LogService.getLogger(RevisionDispatcher.class.getName()).log(Level.SEVERE, null, ex);
+				LogService.writeLog(Level.SEVERE, ex);
+			}
+		}
+	}
+
+	/*
+	 * Creates the checker that compares revisions for this type of server.
+	 */
+	private VersionControlChecker createChecker(ServerDTO server, UserDTO user) {
+		if (server.getServerType() == VersionControlType.SVN) {
+			return new SvnChecker(server, user, _db);
+		} else if (server.getServerType() == VersionControlType.GIT) {
+			return new GitChecker(server, user, _db);
+		}
+		return null;
+	}
+}
@@ -19,44 +19,53 @@
 package net.mobid.codetraq.runnables;
 
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import net.mobid.codetraq.VersionControlType;
 import net.mobid.codetraq.persistence.ServerDTO;
 import net.mobid.codetraq.persistence.ServerRevision;
+import net.mobid.codetraq.persistence.SettingsDTO;
 import net.mobid.codetraq.utils.DbUtility;
 import net.mobid.codetraq.utils.LogService;
+import net.mobid.codetraq.utils.Utilities;
 import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.storage.file.FileRepository;
+import org.tmatesoft.svn.core.ISVNLogEntryHandler;
 import org.tmatesoft.svn.core.SVNException;
 import org.tmatesoft.svn.core.SVNLogEntry;
 import org.tmatesoft.svn.core.SVNLogEntryPath;
-import org.tmatesoft.svn.core.SVNURL;
-import org.tmatesoft.svn.core.auth.ISVNAuthenticationManager;
-import org.tmatesoft.svn.core.internal.io.dav.DAVRepositoryFactory;
-import org.tmatesoft.svn.core.internal.io.svn.SVNRepositoryFactoryImpl;
 import org.tmatesoft.svn.core.io.SVNRepository;
-import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
-import org.tmatesoft.svn.core.wc.SVNWCUtil;
 
 /**
  * This is a worker class that tracks and updates the revision history of a
- * server. As you might have guessed, this class works by polling the respective
- * repository servers after UPDATE_IN_MINUTES elapsed. You should set an update time
- * that is convenient for your own circumnstances.
+ * server, and hands every new revision to the <code>RevisionDispatcher</code>.
+ * Each server is kept in a <code>PollScheduler</code> ordered by the time its next
+ * check is due; this thread sleeps until a server is due and only checks that
+ * server. The interval between two checks of a server starts at
+ * UPDATE_IN_MINUTES and adapts to how often the server receives commits, within
+ * the configured minimum and maximum. A repository hook can ask for a check
+ * straight away with <code>checkNow</code>. The checks themselves run on the
+ * shared <code>CheckerExecutor</code>, so they obey its per-host connection limits.
  *
  * @author Ronald Kurniawan
  * @version 0.1
@@ -64,21 +73,61 @@ import org.tmatesoft.svn.core.wc.SVNWCUtil;
 public class ServerTracker implements Runnable {
 
 	private final int UPDATE_IN_MINUTES = 8;
+	// how soon a hook call that found its server busy is tried again
+	private final int RECHECK_IN_SECONDS = 5;
 	private DbUtility _db = null;
+	private PollScheduler _scheduler = new PollScheduler("ServerTracker");
+	private long _minInterval = 0;
+	private long _maxInterval = 0;
+	private int _svnBatch = 0;
+	private int _gitBatch = 0;
+	private CheckerExecutor _checkers = null;
+	private RevisionDispatcher _dispatcher = null;
+	private SvnSessionPool _sessions = null;
+	private RepositoryRegistry _repositories = null;
+	// short name -> address of every tracked server
+	private Map<String, String> _shortNames = new HashMap<String, String>();
+	// address -> server, needed to update the local copy of git servers
+	private Map<String, ServerDTO> _servers = new HashMap<String, ServerDTO>();
+	// servers that notify us through hook calls, and are only polled as a fallback
+	private Set<String> _hookDriven = Collections.synchronizedSet(new HashSet<String>());
+	// guarded by itself: servers a hook call asked to check since their last check started
+	private final Set<String> _recheck = new HashSet<String>();
+	// guarded by _recheck: servers being checked right now
+	private final Set<String> _running = new HashSet<String>();
 
 	/**
 	 * Creates a new instance of <code>ServerTracker</code>.
 	 * @param db - an instance of <code>DbUtility</code>
 	 * @param servers - a <code>List</code> of <code>ServerDTO</code> objects
+	 * @param settings - a <code>SettingsDTO</code> object holding the polling limits
+	 * @param checkers - the <code>CheckerExecutor</code> that runs the server checks
+	 * @param dispatcher - the <code>RevisionDispatcher</code> that notifies subscribers
+	 * of new revisions
+	 * @param sessions - the <code>SvnSessionPool</code> holding open Subversion sessions
+	 * @param repositories - the <code>RepositoryRegistry</code> holding open git repositories
 	 */
-	public ServerTracker(DbUtility db, List<ServerDTO> servers) {
+	public ServerTracker(DbUtility db, List<ServerDTO> servers, SettingsDTO settings,
+			CheckerExecutor checkers, RevisionDispatcher dispatcher, SvnSessionPool sessions,
+			RepositoryRegistry repositories) {
 		_db = db;
+		_checkers = checkers;
+		_dispatcher = dispatcher;
+		_sessions = sessions;
+		_repositories = repositories;
+		_minInterval = settings.getMinInterval() * 60 * 1000L;
+		_maxInterval = Math.max(_minInterval, settings.getMaxInterval() * 60 * 1000L);
+		_svnBatch = Math.max(1, settings.getSvnBatch());
+		_gitBatch = Math.max(1, settings.getGitBatch());
+		_scheduler.setSpread(settings.isSpreadSchedule(), settings.getJitter());
 		setupServers(servers);
+		LogService.writeMessage(_scheduler.dumpSchedule());
 	}
 
 	/**
 	 * Compares the latest revision found in each server, and stores the newer revision
-	 * data into the database.
+	 * data into the database. The tracker sleeps until the next server is due and
+	 * only checks the servers that are due at that moment.
 	 */
 	public void run() {
 		Thread currentThread = Thread.currentThread();
@@ -88,69 +137,26 @@ public class ServerTracker implements Runnable {
 				if (currentThread.isInterrupted()) {
 					throw new InterruptedException("Time to pack up and go home");
 				}
-				// now we need to query the server database and check for changes
-				// for all the servers that are marked for update...
-				List<ServerRevision> servers = _db.getAllServerRevisions();
-				Iterator it = servers.iterator();
-				while (it.hasNext()) {
-					ServerRevision sr = (ServerRevision) it.next();
-					if (sr.shoudlUpdate() && sr.getMinutesSinceLastCheck() >= UPDATE_IN_MINUTES) {
-						if (sr.getVersionControlType() == VersionControlType.SVN) {
-							SVNLogEntry latestLogEntry = getSvnLatestRevisionHistory(sr);
-							int srLastRevision = Integer.parseInt(sr.getLastRevisionId());
-							if (latestLogEntry != null && latestLogEntry.getRevision() > srLastRevision) {
-								LogService.writeMessage("Found latest revision for "
-										+ sr.getServerAddress() + " with timestamp "
-										+ latestLogEntry.getDate().getTime());
-								sr.setLastCheckedTimestamp(System.currentTimeMillis());
-								// revision-related changes
-								sr.setLastMessage(latestLogEntry.getMessage());
-								sr.setLastRevisionId(String.valueOf(latestLogEntry.getRevision()));
-								sr.setLastAuthor(latestLogEntry.getAuthor());
-								sr.setLastCommitter(latestLogEntry.getAuthor());
-								sr.setLastRevisionTimestamp(latestLogEntry.getDate().getTime());
-								sr.clearFiles();
-								if (latestLogEntry.getChangedPaths().size() > 0) {
-									Iterator iterator = latestLogEntry.getChangedPaths().keySet().iterator();
-									while (iterator.hasNext()) {
-										SVNLogEntryPath ep = (SVNLogEntryPath) latestLogEntry.getChangedPaths().get(iterator.next());
-										StringBuilder sb = new StringBuilder();
-										sb.append(ep.getType()).append(" ").append(ep.getPath());
-										sr.addModifiedFile(sb.toString());
-									}
-								}
-								_db.updateServerLatestRevision(sr);
+				// wait for the next server(s) to become due, then check only those
+				List<String> due = _scheduler.takeDue();
+				for (final String address : due) {
+					boolean queued = _checkers.submit("tracker:" + address, Utilities.getHostAuthority(address),
+						new Runnable() {
+
+							public void run() {
+								trackServer(address);
 							}
-						} else if (sr.getVersionControlType() == VersionControlType.GIT) {
-							RevCommit latestLogEntry = getGitLatestRevisionHistory(sr);
-							long latestCommitTstamp = ((long) latestLogEntry.getCommitTime()) * 1000;
-							if (latestLogEntry != null && (latestCommitTstamp > sr.getLastRevisionTimestamp())) {
-								LogService.writeMessage("Found latest revision for "
-										+ sr.getServerAddress() + " with timestamp "
-										+ latestCommitTstamp);
-								sr.setLastCheckedTimestamp(System.currentTimeMillis());
-								// revision-related changes
-								sr.setLastMessage(latestLogEntry.getFullMessage());
-								sr.setLastRevisionId(latestLogEntry.getId().getName());
-								sr.setLastAuthor(latestLogEntry.getAuthorIdent().getName() + " ("
-										+ (latestLogEntry.getAuthorIdent().getEmailAddress().length() > 0
-										? latestLogEntry.getAuthorIdent().getEmailAddress() : "empty email") + ")");
-								sr.setLastCommitter(latestLogEntry.getCommitterIdent().getName()
-										+ (latestLogEntry.getCommitterIdent().getEmailAddress().length() > 0
-										? latestLogEntry.getCommitterIdent().getEmailAddress() : "empty email") + ")");
-								sr.setLastRevisionTimestamp(latestCommitTstamp);
-								List<String> changedFiles = getChangedFiles(sr);
-								sr.clearFiles();
-								// add new files
-								for (String m : changedFiles) {
-									sr.addModifiedFile(m);
-								}
-								_db.updateServerLatestRevision(sr);
+						}, new Runnable() {
+
+							public void run() {
+								// the check waited for its host and was dropped after all
+								rescheduleSkipped(address);
 							}
-						}
+						});
+					if (!queued) {
+						rescheduleSkipped(address);
 					}
 				}
-				Thread.sleep(UPDATE_IN_MINUTES * 60 * 1000);
 			}
 		} catch (InterruptedException ie) {
 			LogService.writeMessage("ServerTracker interrupted");
@@ -158,6 +164,267 @@ public class ServerTracker implements Runnable {
 		}
 	}
 
+	/*
+	 * Reschedules a server whose check could not be queued. A server that a hook
+	 * call asked to check is checked again as soon as the running check is done, or
+	 * shortly if it is not running; otherwise the host is busy and the server is
+	 * tried again after the shortest interval.
+	 * @param address - server URL
+	 */
+	private void rescheduleSkipped(String address) {
+		boolean requested;
+		boolean running;
+		synchronized (_recheck) {
+			requested = _recheck.contains(address);
+			running = _running.contains(address);
+		}
+		if (!requested) {
+			_scheduler.scheduleNext(address, System.currentTimeMillis(), _minInterval);
+		} else if (!running) {
+			_scheduler.schedule(address, System.currentTimeMillis() + RECHECK_IN_SECONDS * 1000L);
+		}
+		// else trackServer schedules the check when it is done
+	}
+
+	/*
+	 * Checks a single server that has become due, then schedules its next check.
+	 * The next check is scheduled whatever happens here, otherwise the server would
+	 * drop out of the schedule for good. Servers that are gone or switched off are
+	 * looked at again after the longest interval.
+	 * This runs on one of the <code>CheckerExecutor</code> workers.
+	 * @param address - server URL
+	 */
+	private void trackServer(String address) {
+		ServerRevision sr = null;
+		synchronized (_recheck) {
+			// this check sees everything pushed before it started
+			_running.add(address);
+			_recheck.remove(address);
+		}
+		try {
+			sr = _db.getServerRevisionByAddress(address);
+			if (sr == null || !sr.shoudlUpdate()) {
+				return;
+			}
+			boolean foundNew = false;
+			// this check does not wait for a commit per change, only for one at the end
+			_db.beginBatch();
+			try {
+				try {
+					foundNew = checkServer(sr);
+				} catch (RuntimeException ex) {
+					LogService.getLogger(ServerTracker.class.getName()).log(Level.SEVERE, null, ex);
+					LogService.writeLog(Level.SEVERE, ex);
+				}
+				adjustPollInterval(sr, foundNew);
+			} finally {
+				_db.endBatch();
+			}
+		} finally {
+			long checkedAt = System.currentTimeMillis();
+			long interval = _maxInterval;
+			if (sr != null && sr.shoudlUpdate()) {
+				checkedAt = sr.getLastCheckedTimestamp() > 0 ? sr.getLastCheckedTimestamp() : checkedAt;
+				interval = _hookDriven.contains(address) ? _maxInterval : getPollInterval(sr);
+			}
+			boolean requested;
+			synchronized (_recheck) {
+				_running.remove(address);
+				requested = _recheck.contains(address);
+			}
+			if (requested) {
+				// a hook call came in while we were checking, it may have missed the push
+				_scheduler.schedule(address, System.currentTimeMillis());
+			} else {
+				_scheduler.scheduleNext(address, checkedAt, interval);
+			}
+		}
+	}
+
+	/*
+	 * Adapts the polling interval of a server to its commit activity. The interval
+	 * is halved (down to the minimum) whenever a new revision is found, and doubled
+	 * (up to the maximum) when the last recorded commit is older than the current
+	 * interval. The interval is saved whenever it changes, so it survives restarts.
+	 * @param sr - a <code>ServerRevision</code> object
+	 * @param foundNew - whether the last check found a new revision
+	 */
+	private void adjustPollInterval(ServerRevision sr, boolean foundNew) {
+		long interval = getPollInterval(sr);
+		long idleFor = System.currentTimeMillis() - sr.getLastRevisionTimestamp();
+		if (foundNew) {
+			interval = Math.max(_minInterval, interval / 2);
+		} else if (idleFor > interval) {
+			interval = Math.min(_maxInterval, interval * 2);
+		}
+		if (interval != sr.getPollInterval()) {
+			sr.setPollInterval(interval);
+			_db.updateServerPollInterval(sr);
+		}
+	}
+
+	/*
+	 * Returns the polling interval of a server, kept within the configured limits.
+	 * Servers that have never been checked start at UPDATE_IN_MINUTES.
+	 * @param sr - a <code>ServerRevision</code> object
+	 * @return polling interval in miliseconds
+	 */
+	private long getPollInterval(ServerRevision sr) {
+		long interval = sr.getPollInterval();
+		if (interval <= 0) {
+			interval = UPDATE_IN_MINUTES * 60 * 1000L;
+		}
+		return Math.min(_maxInterval, Math.max(_minInterval, interval));
+	}
+
+	/*
+	 * Fetches the latest revision of a server and stores it into the database if it
+	 * is newer than the one we have on record.
+	 * @param sr - a <code>ServerRevision</code> object
+	 * @return <code>true</code> if a newer revision was found, <code>false</code> otherwise
+	 */
+	private boolean checkServer(ServerRevision sr) {
+		sr.setLastCheckedTimestamp(System.currentTimeMillis());
+		if (sr.getVersionControlType() == VersionControlType.SVN) {
+			return getSvnRevisionsSince(sr) > 0;
+		} else if (sr.getVersionControlType() == VersionControlType.GIT) {
+			ServerDTO server = _servers.get(sr.getServerAddress());
+			if (server == null) {
+				return false;
+			}
+			GitMirror mirror = new GitMirror(server, _repositories);
+			Map<String, String> knownTips = getKnownBranchTips(sr, server);
+			// most servers are idle between two checks; when every branch tip is a
+			// commit we already have, skip the fetch, the walk and the diff
+			Map<String, String> remoteTips = mirror.getRemoteTips();
+			if (remoteTips != null && pruneBranchTips(sr, remoteTips.keySet())) {
+				// this check still counts the commits of the deleted branches as seen
+				_db.updateServerLatestRevision(sr);
+			}
+			if (remoteTips != null && knownTips.entrySet().containsAll(remoteTips.entrySet())) {
+				return false;
+			}
+			if (!mirror.update()) {
+				return false;
+			}
+			Repository repo = null;
+			RevWalk rw = null;
+			// a fetch started by another checker waits until we are done, and we wait
+			// for a running fetch, so the walk never sees half updated refs
+			Lock lock = _repositories.getLock(server).readLock();
+			lock.lock();
+			try {
+				repo = _repositories.acquire(server);
+				// one walk serves both the new commits and their changed files
+				rw = new RevWalk(repo);
+				boolean found = false;
+				// commits reachable from a tip we have seen, or from a branch handled
+				// earlier in this check, are not reported again
+				List<ObjectId> seen = new ArrayList<ObjectId>();
+				for (String tip : knownTips.values()) {
+					if (ObjectId.isId(tip)) {
+						seen.add(ObjectId.fromString(tip));
+					}
+				}
+				Map<String, ObjectId> localTips = getLocalBranchTips(repo, server);
+				for (Map.Entry<String, ObjectId> branch : localTips.entrySet()) {
+					if (branch.getValue().getName().equals(knownTips.get(branch.getKey()))) {
+						continue;
+					}
+					if (remoteTips != null && !remoteTips.containsKey(branch.getKey())) {
+						// a pull keeps the copies of deleted branches around
+						continue;
+					}
+					// a branch we have not seen before only reports its latest commit
+					boolean known = knownTips.containsKey(branch.getKey());
+					List<RevCommit> commits = getNewGitCommits(rw, branch.getKey(), branch.getValue(),
+							seen, known ? Integer.MAX_VALUE : 1);
+					ObjectId reportedTip = branch.getValue();
+					if (commits.size() > _gitBatch) {
+						// report the oldest commits now and move the tip only up to them, so
+						// the next check picks up the rest instead of losing them
+						LogService.writeMessage("Found " + commits.size() + " new commits on " + branch.getKey()
+								+ " of " + sr.getServerAddress() + ", the oldest " + _gitBatch
+								+ " are reported now, the rest on the next check.");
+						commits = commits.subList(commits.size() - _gitBatch, commits.size());
+						reportedTip = commits.get(0);
+					}
+					// report the commits in the order they were made, one revision each
+					for (int i = commits.size() - 1; i >= 0; i--) {
+						RevCommit commit = commits.get(i);
+						LogService.writeMessage("Found latest revision for "
+								+ sr.getServerAddress() + " on " + branch.getKey() + " with timestamp "
+								+ ((long) commit.getCommitTime()) * 1000);
+						setGitRevision(sr, commit, getChangedFiles(repo, rw, commit));
+						sr.setLastBranch(branch.getKey());
+						_db.updateServerLatestRevision(sr);
+						_dispatcher.publish(sr);
+						found = true;
+					}
+					sr.setBranchTip(branch.getKey(), reportedTip.getName());
+					seen.add(reportedTip);
+				}
+				// keep the new tips even when they did not bring new commits
+				_db.updateServerLatestRevision(sr);
+				return found;
+			} catch (IOException ex) {
+				LogService.getLogger(ServerTracker.class.getName()).log(Level.SEVERE, null, ex);
+				LogService.writeLog(Level.SEVERE, ex);
+			} finally {
+				if (rw != null) {
+					rw.release();
+				}
+				if (repo != null) {
+					_repositories.release(server);
+				}
+				lock.unlock();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks a server straight away, instead of waiting for its next poll. This is
+	 * called when a repository hook reports a new revision. From then on the server
+	 * is only polled at the longest interval, as a fallback for missed hook calls.
+	 * If the server is being checked at that moment, it is checked again as soon as
+	 * that check is done.
+	 * @param server - short name or URL of the server
+	 * @return <code>true</code> if the server is tracked, <code>false</code> otherwise
+	 */
+	public boolean checkNow(String server) {
+		String address = _shortNames.get(server.toLowerCase());
+		if (address == null) {
+			if (!_shortNames.containsValue(server)) {
+				return false;
+			}
+			address = server;
+		}
+		_hookDriven.add(address);
+		synchronized (_recheck) {
+			_recheck.add(address);
+		}
+		_scheduler.schedule(address, System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * Returns when a server is due for its next check.
+	 * @param address - server URL
+	 * @return time of the next check in miliseconds, or -1 if no check is scheduled
+	 */
+	public long getNextCheckTime(String address) {
+		return _scheduler.getDueTime(address);
+	}
+
+	/**
+	 * Returns a readable dump of the current schedule of server checks.
+	 * @return the current schedule
+	 */
+	public String dumpSchedule() {
+		return _scheduler.dumpSchedule();
+	}
+
 	/*
 	 * Turns the update flag on only for servers that are listed in the configuration files.
 	 * @param servers - a <code>List</code> of <code>ServerDTO</code> objects
@@ -168,6 +435,10 @@ public class ServerTracker implements Runnable {
 		Iterator it = servers.iterator();
 		while (it.hasNext()) {
 			ServerDTO server = (ServerDTO) it.next();
+			_shortNames.put(server.getShortName().toLowerCase(), server.getServerAddress());
+			if (!_servers.containsKey(server.getServerAddress())) {
+				_servers.put(server.getServerAddress(), server);
+			}
 			ServerRevision sr = _db.getServerRevisionByAddress(server.getServerAddress());
 			if (sr == null) {
 				sr = new ServerRevision();
@@ -182,16 +453,123 @@ public class ServerTracker implements Runnable {
 			} else {
 				_db.turnServerUpdateOn(sr);
 			}
+			// servers that were never checked are due straight away
+			long due = System.currentTimeMillis();
+			if (sr.getLastCheckedTimestamp() > 0) {
+				due = Math.min(due, sr.getLastCheckedTimestamp() + getPollInterval(sr));
+			}
+			_scheduler.scheduleFirst(server.getServerAddress(), due, getPollInterval(sr));
+		}
+	}
+
+	/*
+	 * Fetches every revision committed to a Subversion server since the last one on
+	 * record, oldest first. Each revision is stored and handed to the subscribers as
+	 * soon as it arrives, so no revision is skipped when several commits land between
+	 * two polls. At most _svnBatch revisions are fetched per check; the rest are picked
+	 * up by the next check. The first check of a server only fetches HEAD. The log is
+	 * only requested when the HEAD revision has moved since the log was last read up
+	 * to it. HEAD belongs to the whole repository, so it is compared with the HEAD
+	 * seen last time rather than with the last revision of the tracked path.
+	 * @param sr - a <code>ServerRevision</code> object
+	 * @return the number of new revisions found
+	 */
+	private int getSvnRevisionsSince(final ServerRevision sr) {
+		if (!isSvnProtocolSupported(sr)) {
+			return 0;
+		}
+		SVNRepository svnRepository = null;
+		try {
+			svnRepository = _sessions.acquire(sr);
+		} catch (SVNException ex) {
+			LogService.getLogger(SvnChecker.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+			return 0;
+		}
+		boolean healthy = false;
+		final long lastRevision = sr.getLastRevisionId() == null ? -1 : Long.parseLong(sr.getLastRevisionId());
+		final int[] found = new int[1];
+		try {
+			// asking for HEAD is much cheaper than a log with changed paths, so only
+			// fetch the log once we know there is something new
+			long head = svnRepository.getLatestRevision();
+			if (head <= lastRevision || head == sr.getLastHeadRevision()) {
+				healthy = true;
+				return 0;
+			}
+			// the range starts at the last revision on record, because svn refuses a
+			// start revision beyond HEAD; that entry is skipped by the handler
+			svnRepository.log(new String[]{""}, lastRevision < 0 ? head : lastRevision, head, true, true,
+					lastRevision < 0 ? 1 : _svnBatch + 1, new ISVNLogEntryHandler() {
+
+				public void handleLogEntry(SVNLogEntry entry) throws SVNException {
+					if (entry.getRevision() <= lastRevision) {
+						return;
+					}
+					LogService.writeMessage("Found latest revision for "
+							+ sr.getServerAddress() + " with timestamp "
+							+ entry.getDate().getTime());
+					setSvnRevision(sr, entry);
+					_db.updateServerLatestRevision(sr);
+					_dispatcher.publish(sr);
+					found[0]++;
+				}
+			});
+			if (found[0] >= _svnBatch) {
+				LogService.writeMessage("Fetched " + found[0] + " revisions from " + sr.getServerAddress()
+						+ ", the remaining revisions will be fetched on the next check.");
+			} else {
+				// the log has been read up to HEAD, so the next check can skip it
+				// unless HEAD moves on
+				sr.setLastHeadRevision(head);
+				_db.updateServerLatestRevision(sr);
+			}
+			healthy = true;
+		} catch (SVNException ex) {
+			LogService.getLogger(SvnChecker.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+		} finally {
+			// only keep sessions that just worked, so a broken connection is
+			// replaced by a fresh one on the next check
+			if (healthy) {
+				_sessions.release(svnRepository);
+			} else {
+				_sessions.invalidate(svnRepository);
+			}
 		}
+		return found[0];
 	}
 
 	/*
-	 * Fetches the latest revision data from a Subversion server.
+	 * Copies the details of a Subversion log entry into a ServerRevision.
+	 * @param sr - a <code>ServerRevision</code> object
+	 * @param entry - a <code>SVNLogEntry</code> object
+	 */
+	private void setSvnRevision(ServerRevision sr, SVNLogEntry entry) {
+		// revision-related changes
+		sr.setLastMessage(entry.getMessage());
+		sr.setLastRevisionId(String.valueOf(entry.getRevision()));
+		sr.setLastAuthor(entry.getAuthor());
+		sr.setLastCommitter(entry.getAuthor());
+		sr.setLastRevisionTimestamp(entry.getDate().getTime());
+		sr.clearFiles();
+		if (entry.getChangedPaths().size() > 0) {
+			Iterator iterator = entry.getChangedPaths().keySet().iterator();
+			while (iterator.hasNext()) {
+				SVNLogEntryPath ep = (SVNLogEntryPath) entry.getChangedPaths().get(iterator.next());
+				StringBuilder sb = new StringBuilder();
+				sb.append(ep.getType()).append(" ").append(ep.getPath());
+				sr.addModifiedFile(sb.toString());
+			}
+		}
+	}
+
+	/*
+	 * Checks that a Subversion server URL uses one of the protocols we support.
 	 * @param server - a <code>ServerRevision</code> object
-	 * @return a <code>SVNLogEntry</code> object containing the latest revision data
+	 * @return <code>true</code> if the protocol is supported, <code>false</code> otherwise
 	 */
-	private SVNLogEntry getSvnLatestRevisionHistory(ServerRevision server) {
-		// check server protocol
+	private boolean isSvnProtocolSupported(ServerRevision server) {
 		if (!server.getServerAddress().startsWith("http://")
 				&& !server.getServerAddress().startsWith("https://")
 				&& !server.getServerAddress().startsWith("svn://")
@@ -199,154 +577,186 @@ public class ServerTracker implements Runnable {
 			System.out.printf("Server URL should start with protocol. Valid protocols are %s,%s,%s and %s%n",
 					"http", "https", "svn", "svn+ssh");
 			LogService.writeMessage("Wrong protocol for " + server.getServerAddress());
-			return null;
+			return false;
 		}
-		try {
-			if (server.getServerAddress().startsWith("http://") || server.getServerAddress().startsWith("https://")) {
-				DAVRepositoryFactory.setup();
-			} else if (server.getServerAddress().startsWith("svn://") || server.getServerAddress().startsWith("svn+ssh://")) {
-				SVNRepositoryFactoryImpl.setup();
+		return true;
+	}
+
+	/*
+	 * Returns the commits on a branch of a GIT repository that were made since the
+	 * commits we have already seen, newest first. The walk starts at the branch tip
+	 * and stops at the seen commits, so only the new part of the history is ever
+	 * visited. New commits are recognised by their IDs, so rebased or cherry-picked
+	 * commits with older timestamps are found as well.
+	 * @param rw - a <code>RevWalk</code> on the repository
+	 * @param branch - branch name
+	 * @param tip - the commit at the tip of the branch
+	 * @param seen - IDs of commits already reported, with their history
+	 * @param max - the largest number of commits to return; older ones are skipped
+	 * @return a <code>List</code> of <code>RevCommit</code> objects, empty if there is no new commit
+	 */
+	private List<RevCommit> getNewGitCommits(RevWalk rw, String branch, ObjectId tip, List<ObjectId> seen,
+			int max) throws IOException {
+		List<RevCommit> commits = new ArrayList<RevCommit>();
+		rw.reset();
+		rw.sort(RevSort.COMMIT_TIME_DESC);
+		rw.markStart(rw.parseCommit(tip));
+		for (ObjectId id : seen) {
+			try {
+				rw.markUninteresting(rw.parseCommit(id));
+			} catch (MissingObjectException ex) {
+				// this commit is gone (rewritten history), so it cannot hide anything
 			}
-			SVNURL svnUrl = SVNURL.parseURIDecoded(server.getServerAddress());
-			LogService.writeMessage("Connecting to " + server.getServerAddress() + "...");
-			SVNRepository svnRepository = SVNRepositoryFactory.create(svnUrl, null);
-			ISVNAuthenticationManager _auth = SVNWCUtil.createDefaultAuthenticationManager(server.getServerUsername(),
-					server.getServerPassword());
-			svnRepository.setAuthenticationManager(_auth);
-			Collection latestLogEntry = svnRepository.log(new String[]{""},
-					null, -1, -1, true, true);
-			SVNLogEntry latest = null;
-			Iterator it = latestLogEntry.iterator();
-			while (it.hasNext()) {
-				SVNLogEntry entry = (SVNLogEntry) it.next();
-				if (latest == null || latest.getRevision() < entry.getRevision()) {
-					latest = entry;
-				}
+		}
+		RevCommit commit;
+		while ((commit = rw.next()) != null) {
+			if (commits.size() == max) {
+				LogService.writeMessage("More than " + max + " new commits on " + branch
+						+ ", only the latest " + max + " are reported.");
+				break;
 			}
-			return latest;
-		} catch (SVNException ex) {
-			LogService.getLogger(SvnChecker.class.getName()).log(Level.SEVERE, null, ex);
-			LogService.writeLog(Level.SEVERE, ex);
+			commits.add(commit);
 		}
-		return null;
+		return commits;
 	}
 
 	/*
-	 * Fetches the latest revision data from a GIT repository.
+	 * Forgets the tips of branches that are no longer on the server, or are no
+	 * longer monitored.
 	 * @param sr - a <code>ServerRevision</code> object
-	 * @return a <code>RevCommit</code> object containing the latest revision data
+	 * @param remoteBranches - the monitored branches the server has now
+	 * @return <code>true</code> if any tip was forgotten, <code>false</code> otherwise
 	 */
-	private RevCommit getGitLatestRevisionHistory(ServerRevision sr) {
-		try {
-			File gitPath = new File("gitrepos/" + sr.getServerShortName() + "/.git");
-			Repository repo = new FileRepository(gitPath);
-			RevCommit[] commits = getCommits(1, repo);
-			return commits[0];
-		} catch (Exception ex) {
-			LogService.getLogger(ServerTracker.class.getName()).log(Level.SEVERE, null, ex);
-			LogService.writeLog(Level.SEVERE, ex);
+	private boolean pruneBranchTips(ServerRevision sr, Set<String> remoteBranches) {
+		Map<String, String> tips = sr.getBranchTips();
+		if (!tips.keySet().retainAll(remoteBranches)) {
+			return false;
 		}
-		return null;
+		LogService.writeMessage("Forgetting deleted branches of " + sr.getServerAddress() + ", tracking "
+				+ tips.keySet());
+		sr.setBranchTips(tips);
+		return true;
 	}
 
 	/*
-	 * Returns a list of modified files along with their modification status, from
-	 * a GIT repository.
+	 * Returns the last commit seen on each monitored branch of a server. Servers
+	 * tracked before branch tips were recorded only have a last revision, which
+	 * belongs to the server branch.
 	 * @param sr - a <code>ServerRevision</code> object
-	 * @return a <code>List</code> of modified files
+	 * @param server - a <code>ServerDTO</code> object
+	 * @return a <code>Map</code> of branch names to commit IDs
 	 */
-	private List<String> getChangedFiles(ServerRevision sr) {
-		List<String> modifiedFiles = new ArrayList<String>();
-		try {
-			File gitPath = new File("gitrepos/" + sr.getServerShortName() + "/.git");
-			Repository repo = new FileRepository(gitPath);
-			String cr = System.getProperty("line.separator");
-			DiffFormatter df = new DiffFormatter(new ByteArrayOutputStream());
-			RevCommit[] commits = getCommits(2, repo);
-			if (commits.length == 2) {
-				RevTree aTree = commits[0].getTree();
-				RevTree bTree = commits[1].getTree();
-				df.setRepository(repo);
-				List<DiffEntry> changed = df.scan(aTree, bTree);
-				StringBuilder sb = new StringBuilder();
-				for (DiffEntry entry : changed) {
-					sb.delete(0, sb.length());
-					switch (entry.getChangeType()) {
-						case ADD:
-							sb.append("A ").append(entry.getNewPath()).append(cr);
-							break;
-						case DELETE:
-							sb.append("D ").append(entry.getOldPath()).append(cr);
-							break;
-						case MODIFY:
-							sb.append("M ").append(entry.getNewPath());
-							break;
-						case COPY:
-							sb.append("[Copied] from ").append(entry.getOldPath()).append(" to ").append(entry.getNewPath());
-							break;
-						case RENAME:
-							sb.append("[Renamed] from ").append(entry.getOldPath()).append(" to ").append(entry.getNewPath());
-							break;
-					}
-					if (sb.toString().length() > 0) {
-						modifiedFiles.add(sb.toString());
-					}
-				}
-			}
-		} catch (IOException ex) {
-			LogService.getLogger(ServerTracker.class.getName()).log(Level.SEVERE, null, ex);
-			LogService.writeLog(Level.SEVERE, ex);
+	private Map<String, String> getKnownBranchTips(ServerRevision sr, ServerDTO server) {
+		Map<String, String> tips = sr.getBranchTips();
+		if (tips.isEmpty() && sr.getLastRevisionId() != null) {
+			tips.put(server.getServerBranch(), sr.getLastRevisionId());
 		}
-		return modifiedFiles;
+		return tips;
 	}
 
 	/*
-	 * Returns the latest n commit(s) from the local GIT repository of a specified
-	 * project. This is normally called after we update the local repository first.
-	 * @param howManyCommits - the number of commits we wish to pull
+	 * Returns the commits at the tips of the monitored branches in the local copy of
+	 * a server, the server branch first. A clone tracks each branch as
+	 * "origin/&lt;branch&gt;", a bare mirror as the branch itself.
 	 * @param repo - a <code>Repository</code> object
-	 * @return an array of <code>RevCommit</code> objects
+	 * @param server - a <code>ServerDTO</code> object
+	 * @return a <code>Map</code> of branch names to commit IDs
 	 */
-	private RevCommit[] getCommits(int howManyCommits, Repository repo) {
-		if (howManyCommits == 0) {
-			return null;
+	private Map<String, ObjectId> getLocalBranchTips(Repository repo, ServerDTO server) throws IOException {
+		String prefix = server.isBareMirror() ? Constants.R_HEADS : Constants.R_REMOTES + "origin/";
+		Map<String, Ref> refs = repo.getRefDatabase().getRefs(prefix);
+		Map<String, ObjectId> tips = new LinkedHashMap<String, ObjectId>();
+		Ref primary = refs.get(server.getServerBranch());
+		if (primary != null && primary.getObjectId() != null) {
+			tips.put(server.getServerBranch(), primary.getObjectId());
+		} else {
+			LogService.writeMessage("Cannot find branch " + server.getServerBranch() + " for "
+					+ server.getServerAddress());
 		}
-		RevWalk rw = new RevWalk(repo);
-		for (Ref ref : repo.getAllRefs().values()) {
-			try {
-				rw.markStart(rw.parseCommit(ref.getObjectId()));
-			} catch (Exception notACommit) {
+		for (Ref ref : new TreeMap<String, Ref>(refs).values()) {
+			String branch = ref.getName().substring(prefix.length());
+			if (ref.isSymbolic() || ref.getObjectId() == null || tips.containsKey(branch)
+					|| !server.isTrackedBranch(branch)) {
 				continue;
 			}
+			tips.put(branch, ref.getObjectId());
 		}
-		Comparator<RevCommit> commitTimeComparator = new Comparator<RevCommit>() {
+		return tips;
+	}
 
-			public int compare(RevCommit o1, RevCommit o2) {
-				if (o1.getCommitTime() == o2.getCommitTime()) {
-					return 0;
-				} else if (o1.getCommitTime() > o2.getCommitTime()) {
-					return 1;
-				}
-				return -1;
-			}
-		};
-		ArrayList<RevCommit> commits = new ArrayList<RevCommit>();
-		for (RevCommit commit : rw) {
-			commits.add(commit);
+	/*
+	 * Copies the details of a GIT commit into a ServerRevision.
+	 * @param sr - a <code>ServerRevision</code> object
+	 * @param commit - a <code>RevCommit</code> object
+	 * @param changedFiles - the files changed by the commit
+	 */
+	private void setGitRevision(ServerRevision sr, RevCommit commit, List<String> changedFiles) {
+		// revision-related changes
+		sr.setLastMessage(commit.getFullMessage());
+		sr.setLastRevisionId(commit.getId().getName());
+		sr.setLastAuthor(commit.getAuthorIdent().getName() + " ("
+				+ (commit.getAuthorIdent().getEmailAddress().length() > 0
+				? commit.getAuthorIdent().getEmailAddress() : "empty email") + ")");
+		sr.setLastCommitter(commit.getCommitterIdent().getName()
+				+ (commit.getCommitterIdent().getEmailAddress().length() > 0
+				? commit.getCommitterIdent().getEmailAddress() : "empty email") + ")");
+		sr.setLastRevisionTimestamp(((long) commit.getCommitTime()) * 1000);
+		sr.clearFiles();
+		// add new files
+		for (String m : changedFiles) {
+			sr.addModifiedFile(m);
 		}
-		Collections.sort(commits, commitTimeComparator);
-		Collections.reverse(commits);
-		RevCommit[] c = null;
-		if (howManyCommits > commits.size()) {
-			c = commits.toArray(new RevCommit[howManyCommits]);
-		} else {
-			c = new RevCommit[howManyCommits];
-			for (int i = 0; i
-					< howManyCommits; i++) {
-				c[i] = commits.get(i);
+	}
+
+	/*
+	 * Returns a list of modified files along with their modification status, from
+	 * a GIT commit compared to its first parent.
+	 * @param repo - a <code>Repository</code> object
+	 * @param rw - the <code>RevWalk</code> the commit came from
+	 * @param commit - a <code>RevCommit</code> object
+	 * @return a <code>List</code> of modified files
+	 */
+	private List<String> getChangedFiles(Repository repo, RevWalk rw, RevCommit commit) {
+		List<String> modifiedFiles = new ArrayList<String>();
+		try {
+			if (commit.getParentCount() == 0) {
+				return modifiedFiles;
+			}
+			RevCommit parent = rw.parseCommit(commit.getParent(0));
+			String cr = System.getProperty("line.separator");
+			DiffFormatter df = new DiffFormatter(new ByteArrayOutputStream());
+			RevTree aTree = parent.getTree();
+			RevTree bTree = commit.getTree();
+			df.setRepository(repo);
+			List<DiffEntry> changed = df.scan(aTree, bTree);
+			StringBuilder sb = new StringBuilder();
+			for (DiffEntry entry : changed) {
+				sb.delete(0, sb.length());
+				switch (entry.getChangeType()) {
+					case ADD:
+						sb.append("A ").append(entry.getNewPath()).append(cr);
+						break;
+					case DELETE:
+						sb.append("D ").append(entry.getOldPath()).append(cr);
+						break;
+					case MODIFY:
+						sb.append("M ").append(entry.getNewPath());
+						break;
+					case COPY:
+						sb.append("[Copied] from ").append(entry.getOldPath()).append(" to ").append(entry.getNewPath());
+						break;
+					case RENAME:
+						sb.append("[Renamed] from ").append(entry.getOldPath()).append(" to ").append(entry.getNewPath());
+						break;
+				}
+				if (sb.toString().length() > 0) {
+					modifiedFiles.add(sb.toString());
+				}
 			}
+		} catch (IOException ex) {
+			LogService.getLogger(ServerTracker.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
 		}
-		rw.dispose();
-		return c;
+		return modifiedFiles;
 	}
 }
@@ -18,24 +18,23 @@
  */
 package net.mobid.codetraq.runnables;
 
-import java.util.logging.Level;
 import net.mobid.codetraq.VersionControlChecker;
-import net.mobid.codetraq.VersionControlType;
 import net.mobid.codetraq.persistence.ServerDTO;
 import net.mobid.codetraq.persistence.ServerRevision;
 import net.mobid.codetraq.persistence.UserDTO;
 import net.mobid.codetraq.persistence.UserRevision;
 import net.mobid.codetraq.utils.DbUtility;
-import net.mobid.codetraq.utils.LogService;
 
 /**
- * This class serves as a worker class that monitor for revisions on a given
- * subversion server.
+ * This class compares the revisions of a given subversion server against the
+ * revision recorded for a user. The server itself is checked by the
+ * <code>ServerTracker</code>, which hands every new revision to the
+ * <code>RevisionDispatcher</code>.
  *
  * @author Ronald Kurniawan
  * @version 0.1
  */
-public class SvnChecker extends VersionControlChecker implements Runnable {
+public class SvnChecker extends VersionControlChecker {
 
 	/**
 	 * Creates a new SvnChecker.
@@ -48,46 +47,21 @@ public class SvnChecker extends VersionControlChecker implements Runnable {
 	}
 
 	/**
-	 * compareLatestRevisionHistory
-	 *
-	 * Compares the latest revision from ServerRevision against the latest revision
-	 * recorded for a UserRevision.
-	 * @return true if there is a newer revision and UserRevision needs to be updated
+	 * Subversion has a number (integer/long) as a revision id, so we should just
+	 * compare those to determine the latest revision. A user without any revision
+	 * on record has not seen any revision yet.
+	 * @param ur - the <code>UserRevision</code> of this user
+	 * @param sr - the <code>ServerRevision</code> of this server
+	 * @return <code>true</code> if the server has a newer revision
 	 */
 	@Override
-	public boolean compareLatestRevisionHistory() throws Exception {
-		checkServerInUserRecord();
-		UserRevision ur = _db.getUserLatestRevision(_server.getServerAddress(), _user.getId());
-		ServerRevision sr = _db.getServerRevisionByAddress(_server.getServerAddress());
-		if (sr == null) {
-			throw new Exception("Cannot find server " + _server.getServerAddress() +
-				" in the server revision list.");
+	protected boolean isNewerRevision(UserRevision ur, ServerRevision sr) {
+		if (sr.getLastRevisionId() == null) {
+			return false;
 		}
-		if (sr.getVersionControlType() == VersionControlType.SVN) {
-			// Subversion has a number (integer/long) as a revision id, so we
-			// should just compare those to determine the latest revision...
-			int urRevision = Integer.parseInt(ur.getLastRevisionId());
-			int srRevision = Integer.parseInt(sr.getLastRevisionId());
-			if (urRevision < srRevision) {
-				// we update the UserRevision object...
-				ur.setLastRevisionId(sr.getLastRevisionId());
-				_db.updateUserLatestRevision(ur);
-				sendRevisionMessage(sr);
-				return true;
-			}
-		}
-		return false;
+		long urRevision = ur.getLastRevisionId() == null ? 0 : Long.parseLong(ur.getLastRevisionId());
+		long srRevision = Long.parseLong(sr.getLastRevisionId());
+		return urRevision < srRevision;
 	}
 
-	/**
-	 * Calls compareLatestRevisionHistory().
-	 */
-	public void run() {
-		try {
-			compareLatestRevisionHistory();
-		} catch(Exception ex) {
-			LogService.getLogger(SvnChecker.class.getName()).log(Level.SEVERE, null, ex);
-			LogService.writeLog(Level.SEVERE, ex);
-		}
-	}
 }
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2011 Ronald Kurniawan.
+ *
+ * This file is part of CodeTraq.
+ *
+ * CodeTraq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CodeTraq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CodeTraq. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.mobid.codetraq.runnables;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import net.mobid.codetraq.persistence.ServerRevision;
+import net.mobid.codetraq.persistence.SettingsDTO;
+import net.mobid.codetraq.utils.LogService;
+import net.mobid.codetraq.utils.Utilities;
+import org.tmatesoft.svn.core.SVNErrorCode;
+import org.tmatesoft.svn.core.SVNErrorMessage;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.auth.ISVNAuthenticationManager;
+import org.tmatesoft.svn.core.internal.io.dav.DAVRepositoryFactory;
+import org.tmatesoft.svn.core.internal.io.svn.SVNRepositoryFactoryImpl;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+import org.tmatesoft.svn.core.wc.SVNWCUtil;
+
+/**
+ * This class keeps Subversion sessions open between two checks of the same
+ * server, so established connections (TLS handshakes, DAV capabilities, svn+ssh
+ * sessions) and authentication managers are reused instead of being rebuilt on
+ * every poll.
+ * <p>Sessions are kept per server address and lent to one checker at a time.
+ * A session that fails is invalidated and replaced by a fresh one on the next
+ * check. Sessions left idle longer than the idle timeout are closed by a timer,
+ * and only a limited number of sessions are open to the same host at once. The
+ * limit of a host is never below the number of checks the
+ * <code>CheckerExecutor</code> runs against it at once, so a checker never has to
+ * wait for a session; idle sessions of other servers on the host are closed to
+ * make room. Sessions are always closed outside the lock on the pool.</p>
+ *
+ * @author Ronald Kurniawan
+ * @version 0.1
+ */
+public class SvnSessionPool {
+
+	private static boolean _factoriesReady = false;
+
+	// guarded by this: server address -> idle sessions, most recently used first
+	private final Map<String, LinkedList<PooledSession>> _idle = new HashMap<String, LinkedList<PooledSession>>();
+
+	// guarded by this: host -> number of open sessions (idle and lent)
+	private final Map<String, Integer> _open = new HashMap<String, Integer>();
+
+	// guarded by this: sessions currently lent to a checker
+	private final Map<SVNRepository, PooledSession> _lent = new IdentityHashMap<SVNRepository, PooledSession>();
+
+	private SettingsDTO _settings = null;
+
+	private int _hostLimit = 0;
+
+	private long _idleTimeout = 0;
+
+	private boolean _closed = false;
+
+	private Timer _evictor = null;
+
+	// how often idle sessions are looked for, at most
+	private final long EVICT_PERIOD = 60 * 1000L;
+
+	/**
+	 * Creates a new SvnSessionPool.
+	 * @param settings - a <code>SettingsDTO</code> object holding the number of sessions
+	 * and checks per host and the idle timeout
+	 */
+	public SvnSessionPool(SettingsDTO settings) {
+		_settings = settings;
+		_hostLimit = Math.max(1, settings.getSvnSessions());
+		_idleTimeout = settings.getSvnIdle() * 60 * 1000L;
+		setupFactories();
+		if (_idleTimeout > 0) {
+			// a quiet pool still closes its idle sessions
+			_evictor = new Timer("svn-session-evictor", true);
+			long period = Math.min(EVICT_PERIOD, _idleTimeout);
+			_evictor.schedule(new TimerTask() {
+
+				public void run() {
+					evictIdleSessions();
+				}
+			}, period, period);
+		}
+	}
+
+	/*
+	 * Registers the repository factories for every protocol we support. This only
+	 * needs to happen once per JVM.
+	 */
+	private static synchronized void setupFactories() {
+		if (!_factoriesReady) {
+			DAVRepositoryFactory.setup();
+			SVNRepositoryFactoryImpl.setup();
+			_factoriesReady = true;
+		}
+	}
+
+	/**
+	 * Lends a session for the specified server. The session must be handed back
+	 * with <code>release</code>, or with <code>invalidate</code> if it failed.
+	 * When the host of the server already has as many sessions open as allowed,
+	 * an idle session of another server on the host is closed to make room.
+	 * @param sr - a <code>ServerRevision</code> object
+	 * @return a <code>SVNRepository</code> object
+	 * @throws SVNException if a new session cannot be created, or the host has no
+	 * room for one
+	 */
+	public SVNRepository acquire(ServerRevision sr) throws SVNException {
+		String address = sr.getServerAddress();
+		String host = Utilities.getHostAuthority(address);
+		List<PooledSession> toClose = new ArrayList<PooledSession>();
+		try {
+			synchronized (this) {
+				toClose.addAll(evictIdle());
+				LinkedList<PooledSession> idle = _idle.get(address);
+				if (idle != null && !idle.isEmpty()) {
+					PooledSession session = idle.removeFirst();
+					_lent.put(session.repository, session);
+					return session.repository;
+				}
+				if (getOpenCount(host) >= getHostLimit(host)) {
+					// make room for the new session by closing an idle one of the same host
+					PooledSession oldest = removeOldestIdle(host);
+					if (oldest == null) {
+						// every session is lent, which the checker limit should rule out
+						throw new SVNException(SVNErrorMessage.create(SVNErrorCode.RA_SVN_CONNECTION_CLOSED,
+							"All " + getOpenCount(host) + " Subversion sessions to " + host + " are in use"));
+					}
+					toClose.add(oldest);
+				}
+				changeOpenCount(host, 1);
+			}
+		} finally {
+			for (PooledSession session : toClose) {
+				closeQuietly(session);
+			}
+		}
+		try {
+			LogService.writeMessage("Connecting to " + address + "...");
+			SVNRepository repository = SVNRepositoryFactory.create(SVNURL.parseURIDecoded(address), null);
+			ISVNAuthenticationManager auth = SVNWCUtil.createDefaultAuthenticationManager(sr.getServerUsername(),
+					sr.getServerPassword());
+			repository.setAuthenticationManager(auth);
+			synchronized (this) {
+				_lent.put(repository, new PooledSession(address, host, repository));
+			}
+			return repository;
+		} catch (SVNException ex) {
+			synchronized (this) {
+				changeOpenCount(host, -1);
+			}
+			throw ex;
+		} catch (RuntimeException ex) {
+			synchronized (this) {
+				changeOpenCount(host, -1);
+			}
+			throw ex;
+		}
+	}
+
+	/**
+	 * Hands a healthy session back to the pool, to be reused by the next check of
+	 * the same server. The session is closed instead if its host already has too many
+	 * sessions open, if sessions are not kept idle at all, or if the pool has been
+	 * shut down.
+	 * @param repository - a <code>SVNRepository</code> object obtained from <code>acquire</code>
+	 */
+	public void release(SVNRepository repository) {
+		PooledSession session;
+		synchronized (this) {
+			session = _lent.remove(repository);
+			if (session == null) {
+				return;
+			}
+			if (!_closed && _idleTimeout > 0 && getOpenCount(session.host) <= getHostLimit(session.host)) {
+				session.lastUsed = System.currentTimeMillis();
+				LinkedList<PooledSession> idle = _idle.get(session.address);
+				if (idle == null) {
+					idle = new LinkedList<PooledSession>();
+					_idle.put(session.address, idle);
+				}
+				idle.addFirst(session);
+				return;
+			}
+			changeOpenCount(session.host, -1);
+		}
+		session.repository.closeSession();
+	}
+
+	/**
+	 * Closes a session that failed, so the next check of the server starts with a
+	 * fresh connection.
+	 * @param repository - a <code>SVNRepository</code> object obtained from <code>acquire</code>
+	 */
+	public void invalidate(SVNRepository repository) {
+		PooledSession session;
+		synchronized (this) {
+			session = _lent.remove(repository);
+			if (session == null) {
+				return;
+			}
+			changeOpenCount(session.host, -1);
+		}
+		LogService.writeMessage("Dropping Subversion session for " + session.address);
+		session.repository.closeSession();
+	}
+
+	/**
+	 * Returns the number of sessions open to a host, whether idle or lent.
+	 * @param host - host authority of the server URL
+	 * @return number of open sessions
+	 */
+	public synchronized int getOpenCount(String host) {
+		Integer count = _open.get(host);
+		return count == null ? 0 : count.intValue();
+	}
+
+	/**
+	 * Closes every session that has been idle for longer than the idle timeout.
+	 * This is run by a timer, so sessions are closed even when no checks come in.
+	 */
+	public void evictIdleSessions() {
+		List<PooledSession> toClose;
+		synchronized (this) {
+			toClose = evictIdle();
+		}
+		for (PooledSession session : toClose) {
+			closeQuietly(session);
+		}
+	}
+
+	/**
+	 * Closes every idle session. Sessions still lent are closed when they are
+	 * handed back. Should only be called during shutdown.
+	 */
+	public void shutdown() {
+		if (_evictor != null) {
+			_evictor.cancel();
+		}
+		LinkedList<PooledSession> toClose = new LinkedList<PooledSession>();
+		synchronized (this) {
+			_closed = true;
+			for (LinkedList<PooledSession> idle : _idle.values()) {
+				toClose.addAll(idle);
+			}
+			_idle.clear();
+			for (PooledSession session : toClose) {
+				changeOpenCount(session.host, -1);
+			}
+		}
+		for (PooledSession session : toClose) {
+			closeQuietly(session);
+		}
+	}
+
+	/*
+	 * Returns the number of sessions allowed to a host. This is never below the
+	 * number of checks allowed to run against the host at once.
+	 */
+	private int getHostLimit(String host) {
+		return Math.max(_hostLimit, _settings.getHostConnections(host));
+	}
+
+	/*
+	 * Takes every session that has been idle for longer than the idle timeout out
+	 * of the pool. Must be called while holding the lock on this pool; the caller
+	 * closes the sessions after letting go of the lock.
+	 * @return the sessions to close
+	 */
+	private List<PooledSession> evictIdle() {
+		List<PooledSession> evicted = new ArrayList<PooledSession>();
+		long now = System.currentTimeMillis();
+		Iterator<LinkedList<PooledSession>> lists = _idle.values().iterator();
+		while (lists.hasNext()) {
+			LinkedList<PooledSession> idle = lists.next();
+			Iterator<PooledSession> it = idle.iterator();
+			while (it.hasNext()) {
+				PooledSession session = it.next();
+				if (now - session.lastUsed > _idleTimeout) {
+					it.remove();
+					changeOpenCount(session.host, -1);
+					evicted.add(session);
+				}
+			}
+			if (idle.isEmpty()) {
+				lists.remove();
+			}
+		}
+		return evicted;
+	}
+
+	/*
+	 * Takes the idle session of a host that has been unused the longest out of the
+	 * pool. Must be called while holding the lock on this pool; the caller closes
+	 * the session after letting go of the lock.
+	 * @param host - host authority of the server URL
+	 * @return the session to close, or <code>null</code> if the host has no idle session
+	 */
+	private PooledSession removeOldestIdle(String host) {
+		PooledSession oldest = null;
+		for (LinkedList<PooledSession> idle : _idle.values()) {
+			if (!idle.isEmpty() && idle.getLast().host.equals(host)
+					&& (oldest == null || idle.getLast().lastUsed < oldest.lastUsed)) {
+				oldest = idle.getLast();
+			}
+		}
+		if (oldest != null) {
+			LinkedList<PooledSession> idle = _idle.get(oldest.address);
+			idle.removeLast();
+			if (idle.isEmpty()) {
+				_idle.remove(oldest.address);
+			}
+			changeOpenCount(host, -1);
+		}
+		return oldest;
+	}
+
+	/*
+	 * Adds a number to the count of open sessions for a host. Must be called while
+	 * holding the lock on this pool.
+	 */
+	private void changeOpenCount(String host, int delta) {
+		int count = getOpenCount(host) + delta;
+		if (count <= 0) {
+			_open.remove(host);
+		} else {
+			_open.put(host, Integer.valueOf(count));
+		}
+	}
+
+	/*
+	 * Closes a session, logging instead of throwing if anything goes wrong.
+	 */
+	private void closeQuietly(PooledSession session) {
+		try {
+			session.repository.closeSession();
+		} catch (RuntimeException ex) {
+			LogService.getLogger(SvnSessionPool.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+		}
+	}
+
+	/*
+	 * A session together with the server it belongs to and the time it was last
+	 * handed back.
+	 */
+	private static class PooledSession {
+
+		final String address;
+		final String host;
+		final SVNRepository repository;
+		long lastUsed = System.currentTimeMillis();
+
+		PooledSession(String address, String host, SVNRepository repository) {
+			this.address = address;
+			this.host = host;
+			this.repository = repository;
+		}
+	}
+}
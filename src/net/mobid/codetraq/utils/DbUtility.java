@@ -21,9 +21,22 @@ package net.mobid.codetraq.utils;
 import com.db4o.Db4oEmbedded;
 import com.db4o.ObjectContainer;
 import com.db4o.ObjectSet;
+import com.db4o.config.EmbeddedConfiguration;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import net.mobid.codetraq.DurabilityMode;
 import net.mobid.codetraq.persistence.MessageDTO;
+import net.mobid.codetraq.persistence.SettingsDTO;
 import net.mobid.codetraq.persistence.ServerRevision;
 import net.mobid.codetraq.persistence.UserRevision;
 
@@ -31,23 +44,74 @@ import net.mobid.codetraq.persistence.UserRevision;
  * This class deals with CRUD operation with db4o. We chose db4o because it is
  * compact, easy to use, works with the Java objects directly and self-contained.
  * You are free to modify this class to work with other database providers.
+ * <p>Messages waiting to be sent are not kept in db4o but in an <code>Outbox</code>,
+ * a journal of files that are only appended to. User revisions are indexed by
+ * server address and owner, and server revisions by server address. The indexes
+ * are declared every time a "table" is opened, and db4o builds any missing index
+ * at that point, so older database files are indexed on their first open.</p>
+ * <p>Server revisions and user revisions are only ever written by this daemon,
+ * so they are loaded into memory when their "tables" are opened and read from
+ * memory afterwards. The objects db4o manages are only touched by the writer
+ * thread; after every change it publishes a copy of the changed object, and
+ * readers are handed copies of those. A reader never sees an object while it
+ * is being changed, and a rollback can refresh the managed objects safely.</p>
+ * <p>This class is shared by every tracker and checker thread. All changes to
+ * the revisions are handed to a <code>DbWriter</code>, which makes them one at a time on its own
+ * thread and commits them in batches; a method that changes something returns
+ * once its change has been committed. A thread that makes many changes in a row
+ * can wrap them in <code>beginBatch</code> and <code>endBatch</code> so they
+ * share commits; this also applies to flushing the outbox. Such a batch is not
+ * atomic, part of it may be committed before <code>endBatch</code>.</p>
  *
  * @author Ronald Kurniawan
  * @version 0.1
  */
 public class DbUtility {
 
-	private ObjectContainer _db = null;
+	private Outbox _outbox = null;
 	private ObjectContainer _userRevDb = null;
 	private ObjectContainer _serverRevDb = null;
 
+	// server address -> stored server revision; only used on the writer thread
+	private final Map<String, ServerRevision> _serverRevisions =
+		new HashMap<String, ServerRevision>();
+
+	// server address -> copy of the stored server revision, as last written
+	private final Map<String, ServerRevision> _serverSnapshots =
+		new ConcurrentHashMap<String, ServerRevision>();
+
+	// server address and owner -> stored user revision; only used on the writer thread
+	private final Map<String, UserRevision> _userRevisions =
+		new HashMap<String, UserRevision>();
+
+	// server address and owner -> copy of the stored user revision, as last written
+	private final Map<String, UserRevision> _userSnapshots =
+		new ConcurrentHashMap<String, UserRevision>();
+
+	private DbWriter _writer = null;
+
+	// the number of changes that may be waiting for the writer
+	private final int WRITE_QUEUE_SIZE = 1024;
+
+	private final String OUTBOX_DIRECTORY = "outbox";
+
+	/**
+	 * Creates a new instance of DbUtility with the default durability settings.
+	 * This method automatically opens all the "tables" (so to speak) so we can
+	 * start work.
+	 */
+	public DbUtility() {
+		this(new SettingsDTO());
+	}
+
 	/**
 	 * Creates a new instance of DbUtility. This method automatically opens all
 	 * the "tables" (so to speak) so we can start work.
+	 * @param settings - a <code>SettingsDTO</code> object holding the durability mode
 	 */
-	public DbUtility() {
-		if (_db == null) {
-			openMessageDb();
+	public DbUtility(SettingsDTO settings) {
+		if (_outbox == null) {
+			openOutbox(settings);
 		}
 		if (_userRevDb == null) {
 			openUserRevisionDb();
@@ -55,23 +119,133 @@ public class DbUtility {
 		if (_serverRevDb == null) {
 			openServerRevisionDb();
 		}
+		_writer = new DbWriter(WRITE_QUEUE_SIZE, Arrays.<ObjectContainer>asList(_userRevDb, _serverRevDb),
+			settings.getDurability(), settings.getGroupCommit());
+		// the messages go to disk before the revisions that stand for them are committed
+		_writer.setJournal(_outbox);
+		// changes that were rolled back must not linger in the caches
+		_writer.setRollbackListener(new Runnable() {
+
+			public void run() {
+				loadUserRevisions();
+				loadServerRevisions();
+			}
+		});
+		_writer.start();
+	}
+
+	/**
+	 * Starts collecting the changes made by the current thread, so they share
+	 * commits. Changes still take effect straight away, but the calls making them
+	 * no longer wait for a commit. The batch is not atomic: a commit asked for by
+	 * another thread may cover part of it. Every call must be matched by a call
+	 * to <code>endBatch</code>, preferably in a <code>finally</code> block.
+	 */
+	public void beginBatch() {
+		_writer.begin();
+	}
+
+	/**
+	 * Commits the changes collected since <code>beginBatch</code>, and waits until
+	 * they are committed. The outbox is flushed first, so the user revisions are
+	 * never committed ahead of the messages they stand for.
+	 * @throws IllegalStateException - if the outbox cannot be flushed or the
+	 * changes cannot be committed
+	 */
+	public void endBatch() {
+		IOException failure = null;
+		try {
+			_outbox.sync();
+		} catch (IOException ex) {
+			LogService.getLogger(DbUtility.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+			failure = ex;
+		}
+		// still ends the batch; its commit flushes the outbox again and gives up if that fails
+		_writer.end();
+		if (failure != null) {
+			throw new IllegalStateException("Cannot write to the outbox", failure);
+		}
 	}
 
 	/**
-	 * Closes all the "tables" associated with this instance.
+	 * Returns a readable summary of the commits made so far.
+	 * @return commit counts and times
+	 */
+	public String dumpStorageStats() {
+		return _writer.dumpStats();
+	}
+
+	/**
+	 * Closes all the "tables" associated with this instance, after the changes
+	 * still waiting have been made.
 	 */
 	public void closeDbs() {
-		dbClose();
+		_writer.close();
+		_outbox.close();
 		userRevisionDbClose();
 		serverRevisionDbClose();
 	}
 
 	/*
-	 * Opens the "table" associated with storing message objects.
+	 * Opens the outbox holding the messages waiting to be sent. Messages left in
+	 * the old "messages.db" are moved into the outbox the first time.
+	 */
+	private void openOutbox(SettingsDTO settings) {
+		try {
+			_outbox = new Outbox(new File(OUTBOX_DIRECTORY),
+				settings.getDurability() == DurabilityMode.OPERATION);
+		} catch (IOException ex) {
+			LogService.getLogger(DbUtility.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+			throw new IllegalStateException("Cannot open the outbox", ex);
+		}
+		File messageDb = new File("messages.db");
+		if (messageDb.exists()) {
+			importMessageDb(messageDb);
+		}
+	}
+
+	/*
+	 * Moves the unsent messages of the old message "table" into the outbox, then
+	 * renames the old file so it is not imported again.
+	 */
+	private void importMessageDb(File messageDb) {
+		ObjectContainer db = Db4oEmbedded.openFile(Db4oEmbedded.newConfiguration(), messageDb.getPath());
+		int imported = 0;
+		try {
+			ObjectSet result = db.query(MessageDTO.class);
+			while (result.hasNext()) {
+				MessageDTO m = (MessageDTO)result.next();
+				if (!m.isSent() && _outbox.enqueue(m)) {
+					imported++;
+				}
+			}
+			_outbox.sync();
+		} catch (IOException ex) {
+			LogService.getLogger(DbUtility.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+			return;
+		} finally {
+			db.close();
+		}
+		File renamed = new File(messageDb.getPath() + ".imported");
+		if (!messageDb.renameTo(renamed)) {
+			LogService.writeMessage("WARNING: cannot rename " + messageDb.getPath() +
+				", its messages will be imported again on the next start.");
+		}
+		LogService.writeMessage("Moved " + imported + " unsent message(s) from " + messageDb.getPath() +
+			" to the outbox.");
+	}
+
+	/*
+	 * Flushes the outbox to disk, unless the current thread collects its changes
+	 * until <code>endBatch</code>.
 	 */
-	private void openMessageDb() {
-		// open the database
-		_db = Db4oEmbedded.openFile(Db4oEmbedded.newConfiguration(), "messages.db");
+	private void syncOutbox() throws IOException {
+		if (!_writer.isBatching()) {
+			_outbox.sync();
+		}
 	}
 
 	/**
@@ -79,8 +253,7 @@ public class DbUtility {
 	 * @return number of messages still in the database
 	 */
 	public int getMessagePopulations() {
-		ObjectSet result = _db.queryByExample(MessageDTO.class);
-		return result.size();
+		return _outbox.size();
 	}
 
 	/**
@@ -89,10 +262,42 @@ public class DbUtility {
 	 * @throws net.mobid.codetraq.utils.DbUtility.DbException - when a duplicate message is found
 	 */
 	public void saveMessage(MessageDTO value) throws DbException {
-		if (getMessageByTime(value.getTimestamp()).hasNext()) {
+		boolean saved;
+		try {
+			saved = _outbox.enqueue(value);
+			syncOutbox();
+		} catch (IOException ex) {
+			LogService.getLogger(DbUtility.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+			throw new DbException("Cannot write to the outbox");
+		}
+		if (!saved) {
 			throw new DbException("Duplicate timestamp found");
 		}
-		_db.store(value);
+	}
+
+	/**
+	 * Saves a batch of messages into the database for sending at a later time.
+	 * Messages that are already in the database are skipped.
+	 * @param values - a <code>List</code> of <code>MessageDTO</code> objects
+	 * @return the number of messages saved
+	 * @throws net.mobid.codetraq.utils.DbUtility.DbException - when the messages cannot be written
+	 */
+	public int saveMessages(List<MessageDTO> values) throws DbException {
+		int saved = 0;
+		try {
+			for (MessageDTO value : values) {
+				if (_outbox.enqueue(value)) {
+					saved++;
+				}
+			}
+			syncOutbox();
+		} catch (IOException ex) {
+			LogService.getLogger(DbUtility.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+			throw new DbException("Cannot write to the outbox");
+		}
+		return saved;
 	}
 
 	/**
@@ -101,21 +306,23 @@ public class DbUtility {
 	 * @param value - a <code>MessageDTO</code> object, which should be updated
 	 */
 	public void updateMessageRetries(MessageDTO value) {
-		ObjectSet result = _db.queryByExample(value);
-		MessageDTO found = (MessageDTO)result.next();
-		found.appendRetries();
-		_db.store(found);
+		try {
+			_outbox.retry(value);
+			syncOutbox();
+		} catch (IOException ex) {
+			LogService.getLogger(DbUtility.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+		}
 	}
 
 	/**
-	 * Updates the status of message to "SENT".
+	 * Updates the status of message to "SENT". A sent message is taken out of
+	 * the outbox straight away.
 	 * @param value - a <code>MessageDTO</code> object, which should be updated
 	 */
 	public void updateMessageSent(MessageDTO value) {
-		ObjectSet result = _db.queryByExample(value);
-		MessageDTO found = (MessageDTO)result.next();
-		found.setSent(true);
-		_db.store(found);
+		value.setSent(true);
+		deleteMessage(value);
 	}
 
 	/**
@@ -123,21 +330,15 @@ public class DbUtility {
 	 * @return a <code>List</code> of unsent messages
 	 */
 	public List<MessageDTO> getAllUnsentMessages() {
-		return _db.query(MessageDTO.class);
+		return _outbox.getPending();
 	}
 
 	/**
-	 * Deletes all messages that are marked "SENT".
+	 * Deletes all messages that are marked "SENT". Sent messages leave the outbox
+	 * as soon as they are marked, so there is nothing left to do; this is kept for
+	 * callers that tidy up before every round.
 	 */
 	public void deleteAllSentMessages() {
-		MessageDTO template = new MessageDTO();
-		template.setSent(true);
-		ObjectSet result = _db.queryByExample(template);
-		while(result.hasNext()) {
-			MessageDTO found = (MessageDTO)result.next();
-			deleteMessage(found);
-			logCheckDelete(found.getServerName(), found.getTimestamp());
-		}
 	}
 
 	/**
@@ -145,25 +346,16 @@ public class DbUtility {
 	 * @param value - a <code>MessageDTO</code> that should be deleted
 	 */
 	public void deleteMessage(MessageDTO value) {
-		ObjectSet result = _db.queryByExample(value);
-		while(result.hasNext()) {
-			MessageDTO m = (MessageDTO)result.next();
-			_db.delete(m);
+		try {
+			if (_outbox.ack(value)) {
+				syncOutbox();
+			}
+		} catch (IOException ex) {
+			LogService.getLogger(DbUtility.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
 		}
 	}
 
-	/*
-	 * Returns a message that has a specified timestamp.
-	 * @param timeStamp - the required timestamp
-	 * @return an <code>ObjectSet</code> containing the message object(s)
-	 */
-	private ObjectSet getMessageByTime(long timeStamp) {
-		MessageDTO m = new MessageDTO();
-		m.setTimestamp(timeStamp);
-		ObjectSet result = _db.queryByExample(m);
-		return result;
-	}
-
 	/**
 	 * Queries the number of attemps to send a specific message has. The output
 	 * would only be visible from the console.
@@ -171,12 +363,8 @@ public class DbUtility {
 	 * @param timestamp - the timestamp of the message
 	 */
 	public void logCheckRetries(String serverName, long timestamp) {
-		MessageDTO m = new MessageDTO();
-		m.setServerName(serverName);
-		m.setTimestamp(timestamp);
-		ObjectSet os = _db.queryByExample(m);
-		if (os.hasNext()) {
-			MessageDTO found = (MessageDTO)os.next();
+		MessageDTO found = _outbox.find(serverName, timestamp);
+		if (found != null) {
 			LogService.writeMessage("CHECK retries -> Message for server " +
 				found.getServerName() + " (rev#" + found.getRevisionId() + ") has " +
 				found.getRetries() + " retries.");
@@ -190,36 +378,65 @@ public class DbUtility {
 	 * @param timestamp - the timetamp of the message
 	 */
 	public void logCheckDelete(String serverName, long timestamp) {
-		MessageDTO m = new MessageDTO();
-		m.setServerName(serverName);
-		m.setTimestamp(timestamp);
-		ObjectSet os = _db.queryByExample(m);
-		if (os.isEmpty()) {
+		MessageDTO found = _outbox.find(serverName, timestamp);
+		if (found == null) {
 			LogService.writeMessage("CHECK deleted -> Message for server " +
 				serverName + " with timestamp " + timestamp + " has been deleted.");
 		} else {
-			MessageDTO found = (MessageDTO)os.next();
 			LogService.writeMessage("CHECK deleted -> Message for server " +
 				found.getServerName() + " (rev#" + found.getRevisionId() + ")" +
 				" still in database.");
 		}
 	}
 
+	// USER REVISION database
 	/*
-	 * Closes the message "table"
+	 * Opens the user revision "table"
 	 */
-	private void dbClose() {
-		if (_db != null) {
-			_db.close();
+	private void openUserRevisionDb() {
+		EmbeddedConfiguration config = Db4oEmbedded.newConfiguration();
+		config.common().objectClass(UserRevision.class).objectField("_serverAddress").indexed(true);
+		config.common().objectClass(UserRevision.class).objectField("_owner").indexed(true);
+		_userRevDb = Db4oEmbedded.openFile(config, "user.db");
+		loadUserRevisions();
+	}
+
+	/*
+	 * Fills the user revision cache with the stored objects. Objects already in
+	 * memory are refreshed from the database, and objects that are no longer stored
+	 * are dropped. Runs while the "table" is opened, and on the writer thread after
+	 * a rollback.
+	 */
+	private void loadUserRevisions() {
+		Set<String> keys = new HashSet<String>();
+		ObjectSet result = _userRevDb.query(UserRevision.class);
+		while (result.hasNext()) {
+			UserRevision ur = (UserRevision)result.next();
+			_userRevDb.ext().refresh(ur, Integer.MAX_VALUE);
+			// we only suppose to have one Revision per Server, so keep the first one found...
+			String key = getUserRevisionKey(ur.getServerAddress(), ur.getOwner());
+			if (keys.add(key)) {
+				_userRevisions.put(key, ur);
+				publish(ur);
+			}
 		}
+		_userRevisions.keySet().retainAll(keys);
+		_userSnapshots.keySet().retainAll(keys);
 	}
 
-	// USER REVISION database
 	/*
-	 * Opens the user revision "table"
+	 * Hands a copy of a stored user revision to the readers. Runs on the writer
+	 * thread, after every change to the revision.
 	 */
-	private void openUserRevisionDb() {
-		_userRevDb = Db4oEmbedded.openFile(Db4oEmbedded.newConfiguration(), "user.db");
+	private void publish(UserRevision ur) {
+		_userSnapshots.put(getUserRevisionKey(ur.getServerAddress(), ur.getOwner()), ur.copy());
+	}
+
+	/*
+	 * Returns the cache key of the user revision of an owner for a server.
+	 */
+	private String getUserRevisionKey(String address, String owner) {
+		return address + "\n" + owner;
 	}
 
 	/*
@@ -232,12 +449,12 @@ public class DbUtility {
 	}
 
 	/**
-	 * Returns the number of user revision in the database.
+	 * Returns the number of user revision in the database. The count comes from
+	 * the cache, which holds one revision per server and owner.
 	 * @return the number of user revisions
 	 */
 	public int getUserRecordPopulations() {
-		ObjectSet result = _userRevDb.queryByExample(UserRevision.class);
-		return result.size();
+		return _userSnapshots.size();
 	}
 
 	/**
@@ -247,14 +464,7 @@ public class DbUtility {
 	 * @return
 	 */
 	public boolean isServerInUserRecord(String address, String owner) {
-		UserRevision r = new UserRevision();
-		r.setOwner(owner);
-		r.setServerAddress(address);
-		ObjectSet result = _userRevDb.queryByExample(r);
-		if (result.hasNext()) {
-			return true;
-		}
-		return false;
+		return _userSnapshots.containsKey(getUserRevisionKey(address, owner));
 	}
 
 	/**
@@ -262,52 +472,58 @@ public class DbUtility {
 	 * @param address - server URL
 	 * @param owner - user ID who "owns" this server
 	 */
-	public void addServerToUserRecord(String address, String owner) {
-		UserRevision r = new UserRevision();
-		r.setServerAddress(address);
-		r.setOwner(owner);
-		int records = getUserRecordPopulations();
-		_userRevDb.store(r);
-		int after = getUserRecordPopulations();
-		LogService.writeMessage("CHECK_ADD_UR: before " + records + "/after " + after);
-		if (records == after) {
-			LogService.writeMessage("WARNING: Adding new server to user database seems to have failed. (address: " +
-				address + "; owner: " + owner + ")");
-		}
+	public void addServerToUserRecord(final String address, final String owner) {
+		_writer.execute(new Callable<Void>() {
+
+			public Void call() {
+				UserRevision r = new UserRevision();
+				r.setServerAddress(address);
+				r.setOwner(owner);
+				int records = getUserRecordPopulations();
+				_userRevDb.store(r);
+				_userRevisions.put(getUserRevisionKey(address, owner), r);
+				publish(r);
+				int after = getUserRecordPopulations();
+				LogService.writeMessage("CHECK_ADD_UR: before " + records + "/after " + after);
+				if (records == after) {
+					LogService.writeMessage("WARNING: Adding new server to user database seems to have failed. (address: " +
+						address + "; owner: " + owner + ")");
+				}
+				return null;
+			}
+		});
 	}
 
 	/**
-	 * Returns the user revision object for the specified URL and user ID.
+	 * Returns the user revision object for the specified URL and user ID. The object
+	 * is a copy, changing it does not change the database; use
+	 * <code>updateUserLatestRevision</code> for that.
 	 * @param address - server URL
 	 * @param owner - user ID who "owns" this server
 	 * @return a <code>UserRevision</code> object
 	 */
 	public UserRevision getUserLatestRevision(String address, String owner) {
-		UserRevision r = new UserRevision();
-		r.setServerAddress(address);
-		r.setOwner(owner);
-		ObjectSet result = _userRevDb.queryByExample(r);
-		// we only suppose to have one Revision per Server, so grab the first one found...
-		if (result.hasNext()) {
-			return (UserRevision)result.next();
-		}
-		return null;
+		UserRevision found = _userSnapshots.get(getUserRevisionKey(address, owner));
+		return found == null ? null : found.copy();
 	}
 
 	/**
 	 * Updates a user revision object with new information.
 	 * @param ur - <code>UserRevision</code> object to update
 	 */
-	public void updateUserLatestRevision(UserRevision ur) {
-		UserRevision r = new UserRevision();
-		r.setServerAddress(ur.getServerAddress());
-		r.setOwner(ur.getOwner());
-		ObjectSet result = _userRevDb.queryByExample(r);
-		if (result.hasNext()) {
-			UserRevision found = (UserRevision)result.next();
-			found.setLastRevisionId(ur.getLastRevisionId());
-			_userRevDb.store(found);
-		}
+	public void updateUserLatestRevision(final UserRevision ur) {
+		_writer.execute(new Callable<Void>() {
+
+			public Void call() {
+				UserRevision found = _userRevisions.get(getUserRevisionKey(ur.getServerAddress(), ur.getOwner()));
+				if (found != null) {
+					found.setLastRevisionId(ur.getLastRevisionId());
+					_userRevDb.store(found);
+					publish(found);
+				}
+				return null;
+			}
+		});
 	}
 
 	// SERVER REVISION
@@ -315,7 +531,39 @@ public class DbUtility {
 	 * Opens the Server Revision "table".
 	 */
 	private void openServerRevisionDb() {
-		_serverRevDb = Db4oEmbedded.openFile(Db4oEmbedded.newConfiguration(), "revision.db");
+		EmbeddedConfiguration config = Db4oEmbedded.newConfiguration();
+		config.common().objectClass(ServerRevision.class).objectField("_serverAddress").indexed(true);
+		_serverRevDb = Db4oEmbedded.openFile(config, "revision.db");
+		loadServerRevisions();
+	}
+
+	/*
+	 * Fills the server revision cache with the stored objects. Objects already in
+	 * memory are refreshed from the database, and objects that are no longer stored
+	 * are dropped. Runs while the "table" is opened, and on the writer thread after
+	 * a rollback.
+	 */
+	private void loadServerRevisions() {
+		Set<String> addresses = new HashSet<String>();
+		ObjectSet result = _serverRevDb.query(ServerRevision.class);
+		while (result.hasNext()) {
+			ServerRevision sr = (ServerRevision)result.next();
+			_serverRevDb.ext().refresh(sr, Integer.MAX_VALUE);
+			if (addresses.add(sr.getServerAddress())) {
+				_serverRevisions.put(sr.getServerAddress(), sr);
+				publish(sr);
+			}
+		}
+		_serverRevisions.keySet().retainAll(addresses);
+		_serverSnapshots.keySet().retainAll(addresses);
+	}
+
+	/*
+	 * Hands a copy of a stored server revision to the readers. Runs on the writer
+	 * thread, after every change to the revision.
+	 */
+	private void publish(ServerRevision sr) {
+		_serverSnapshots.put(sr.getServerAddress(), sr.copy());
 	}
 
 	/*
@@ -328,123 +576,167 @@ public class DbUtility {
 	}
 
 	/**
-	 * Returns the number of ServerRevision objects in the database.
+	 * Returns the number of ServerRevision objects in the database. The count comes
+	 * from the cache, which holds one revision per server.
 	 * @return number of <code>ServerRevision</code> objects
 	 */
 	public int getServerRevisionPopulations() {
-		ObjectSet result = _serverRevDb.queryByExample(ServerRevision.class);
-		return result.size();
+		return _serverSnapshots.size();
 	}
 
 	/**
-	 * Returns a list of all ServerRevision objects in the database.
+	 * Returns a list of all ServerRevision objects in the database. The objects are
+	 * copies, changing them does not change the database.
 	 * @return a <code>List</code> of all <code>ServerRevision</code> objects
 	 */
 	public List<ServerRevision> getAllServerRevisions() {
-		List<ServerRevision> list = new ArrayList<ServerRevision>();
-		ServerRevision sr = new ServerRevision();
-		ObjectSet result = _serverRevDb.queryByExample(sr);
-		while(result.hasNext()) {
-			list.add((ServerRevision)result.next());
+		List<ServerRevision> all = new ArrayList<ServerRevision>();
+		for (ServerRevision sr : _serverSnapshots.values()) {
+			all.add(sr.copy());
 		}
-		return list;
+		return all;
 	}
 
 	/**
-	 * Returns a ServerRevision objects specified by a server URL.
+	 * Returns a ServerRevision objects specified by a server URL. The object is a
+	 * copy, changing it does not change the database; use the update methods for that.
 	 * @param address - server URL
 	 * @return a <code>ServerRevision</code> object
 	 */
 	public ServerRevision getServerRevisionByAddress(String address) {
-		ServerRevision template = new ServerRevision();
-		template.setServerAddress(address);
-		ObjectSet result = _serverRevDb.queryByExample(template);
-		if (result.hasNext()) {
-			return (ServerRevision)result.next();
-		}
-		return null;
+		ServerRevision found = _serverSnapshots.get(address);
+		return found == null ? null : found.copy();
 	}
 
 	/**
-	 * Adds a ServerRevision object into the database.
+	 * Adds a copy of a ServerRevision object into the database.
 	 * @param sr - <code>ServerRevision</code> object to be added
 	 */
-	public void addServerRevision(ServerRevision sr) {
-		int srs = getServerRevisionPopulations();
-		_serverRevDb.store(sr);
-		int after = getServerRevisionPopulations();
-		LogService.writeMessage("CHECK_ADD_SR: before " + srs + "/after " + after);
-		if (srs == after) {
-			LogService.writeMessage("WARNING: Adding new server revision seems to have failed. (server: " +
-				sr.getServerAddress() + ")");
-		}
+	public void addServerRevision(final ServerRevision sr) {
+		_writer.execute(new Callable<Void>() {
+
+			public Void call() {
+				int srs = getServerRevisionPopulations();
+				// the caller keeps its object, the database gets one of its own
+				ServerRevision stored = sr.copy();
+				_serverRevDb.store(stored);
+				_serverRevisions.put(stored.getServerAddress(), stored);
+				publish(stored);
+				int after = getServerRevisionPopulations();
+				LogService.writeMessage("CHECK_ADD_SR: before " + srs + "/after " + after);
+				if (srs == after) {
+					LogService.writeMessage("WARNING: Adding new server revision seems to have failed. (server: " +
+						sr.getServerAddress() + ")");
+				}
+				return null;
+			}
+		});
 	}
 
 	/**
 	 * Updates a ServerRevision object with new information.
 	 * @param sr - <code>ServerRevision</code> object to be updated
 	 */
-	public void updateServerLatestRevision(ServerRevision sr) {
-		ServerRevision template = new ServerRevision();
-		template.setServerAddress(sr.getServerAddress());
-		ObjectSet result = _serverRevDb.queryByExample(template);
-		if (result.hasNext()) {
-			ServerRevision found = (ServerRevision)result.next();
-			LogService.writeMessage("CHECK_BEFORE_SR_UPDATE: rev " + 
-				found.getLastRevisionId());
-			found.setLastCheckedTimestamp(sr.getLastCheckedTimestamp());
-			found.setLastMessage(sr.getLastMessage());
-			found.setLastAuthor(sr.getLastAuthor());
-			found.setLastCommitter(sr.getLastCommitter());
-			found.setLastRevisionTimestamp(sr.getLastRevisionTimestamp());
-			found.setLastRevisionId(sr.getLastRevisionId());
-			_serverRevDb.store(found);
-			LogService.writeMessage("CHECK_AFTER_SR_UPDATE: rev " + 
-				found.getLastRevisionId());
-		}
+	public void updateServerLatestRevision(final ServerRevision sr) {
+		_writer.execute(new Callable<Void>() {
+
+			public Void call() {
+				ServerRevision found = _serverRevisions.get(sr.getServerAddress());
+				if (found != null) {
+					LogService.writeMessage("CHECK_BEFORE_SR_UPDATE: rev " + 
+						found.getLastRevisionId());
+					found.setLastCheckedTimestamp(sr.getLastCheckedTimestamp());
+					found.setLastMessage(sr.getLastMessage());
+					found.setLastAuthor(sr.getLastAuthor());
+					found.setLastCommitter(sr.getLastCommitter());
+					found.setLastRevisionTimestamp(sr.getLastRevisionTimestamp());
+					found.setLastRevisionId(sr.getLastRevisionId());
+					found.setPollInterval(sr.getPollInterval());
+					found.setLastHeadRevision(sr.getLastHeadRevision());
+					found.setBranchTips(sr.getBranchTips());
+					found.setLastBranch(sr.getLastBranch());
+					_serverRevDb.store(found);
+					publish(found);
+					LogService.writeMessage("CHECK_AFTER_SR_UPDATE: rev " + 
+						found.getLastRevisionId());
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Updates the polling interval of a ServerRevision object.
+	 * @param sr - <code>ServerRevision</code> object to be updated
+	 */
+	public void updateServerPollInterval(final ServerRevision sr) {
+		_writer.execute(new Callable<Void>() {
+
+			public Void call() {
+				ServerRevision found = _serverRevisions.get(sr.getServerAddress());
+				if (found != null) {
+					found.setPollInterval(sr.getPollInterval());
+					_serverRevDb.store(found);
+					publish(found);
+				}
+				return null;
+			}
+		});
 	}
 
 	/**
 	 * Toggles the "update" flag of a certain ServerRevision to "ON".
 	 * @param sr - <code>ServerRevision</code> to be flagged
 	 */
-	public void turnServerUpdateOn(ServerRevision sr) {
-		ServerRevision template = new ServerRevision();
-		template.setServerAddress(sr.getServerAddress());
-		ObjectSet result = _serverRevDb.queryByExample(template);
-		if (result.hasNext()) {
-			ServerRevision found = (ServerRevision)result.next();
-			found.setShouldUpdate(true);
-			_serverRevDb.store(found);
-		}
+	public void turnServerUpdateOn(final ServerRevision sr) {
+		_writer.execute(new Callable<Void>() {
+
+			public Void call() {
+				ServerRevision found = _serverRevisions.get(sr.getServerAddress());
+				if (found != null) {
+					found.setShouldUpdate(true);
+					_serverRevDb.store(found);
+					publish(found);
+				}
+				return null;
+			}
+		});
 	}
 
 	/**
 	 * Toggles the "update" flag of a certain ServerRevision to "OFF".
 	 * @param sr - <code>ServerRevision</code> to be flagged
 	 */
-	public void turnServerUpdateOff(ServerRevision sr) {
-		ServerRevision template = new ServerRevision();
-		template.setServerAddress(sr.getServerAddress());
-		ObjectSet result = _serverRevDb.queryByExample(template);
-		if (result.hasNext()) {
-			ServerRevision found = (ServerRevision)result.next();
-			found.setShouldUpdate(false);
-			_serverRevDb.store(found);
-		}
+	public void turnServerUpdateOff(final ServerRevision sr) {
+		_writer.execute(new Callable<Void>() {
+
+			public Void call() {
+				ServerRevision found = _serverRevisions.get(sr.getServerAddress());
+				if (found != null) {
+					found.setShouldUpdate(false);
+					_serverRevDb.store(found);
+					publish(found);
+				}
+				return null;
+			}
+		});
 	}
 
 	/**
 	 * Toggles the "update" flag of all ServerRevision objects to "OFF".
 	 */
 	public void turnAllServerUpdateOff() {
-		ServerRevision template = new ServerRevision();
-		ObjectSet result = _serverRevDb.queryByExample(template);
-		while(result.hasNext()) {
-			ServerRevision item = (ServerRevision)result.next();
-			item.setShouldUpdate(false);
-			_serverRevDb.store(item);
-		}
+		_writer.execute(new Callable<Void>() {
+
+			public Void call() {
+				for (ServerRevision item : _serverRevisions.values()) {
+					item.setShouldUpdate(false);
+					_serverRevDb.store(item);
+					publish(item);
+				}
+				return null;
+			}
+		});
 	}
 
 	/**
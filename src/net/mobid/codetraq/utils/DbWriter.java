@@ -0,0 +1,537 @@
+/*
+ * Copyright 2011 Ronald Kurniawan.
+ *
+ * This file is part of CodeTraq.
+ *
+ * CodeTraq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CodeTraq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CodeTraq. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.mobid.codetraq.utils;
+
+import com.db4o.ObjectContainer;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import net.mobid.codetraq.DurabilityMode;
+
+/**
+ * This class performs every change to the db4o "tables" on a single thread. The
+ * trackers and checkers hand their changes over as commands; the writer runs the
+ * queued commands one after the other, commits them together and only then tells
+ * the callers that their changes are done. Read-modify-write sequences therefore
+ * never interleave, and one commit covers many small changes.
+ * <p>How often the writer commits depends on the <code>DurabilityMode</code>:
+ * after every change, after every batch of changes waiting in the queue, or after
+ * collecting changes for a short time.</p>
+ * <p>A thread can also group its own changes between <code>begin</code> and
+ * <code>end</code>. Its changes are then made as usual, but it does not wait for
+ * them to be committed; <code>end</code> waits for a commit covering all of
+ * them, and fails if any of them could not be committed. A poll cycle that stores
+ * hundreds of changes thus pays for one commit. This only saves commits, it does
+ * not make the group atomic: the writer commits everything it has run whenever a
+ * commit is due, so a commit asked for by another thread, or a full batch, may
+ * cover part of a group that is still open.</p>
+ * <p>The queue of commands is bounded. When it is full, callers wait until the
+ * writer has caught up.</p>
+ * <p>A journal kept outside of db4o, such as the outbox, can be flushed before
+ * every commit, so a commit never refers to records that are not on disk yet.</p>
+ * <p>When a commit fails, every container is rolled back and a listener is told,
+ * so anything cached from the containers can be reloaded. The callers whose
+ * changes were lost get the failure.</p>
+ *
+ * @author Ronald Kurniawan
+ * @version 0.1
+ */
+public class DbWriter implements Runnable {
+
+	private BlockingQueue<Command<?>> _queue = null;
+
+	private List<ObjectContainer> _containers = new ArrayList<ObjectContainer>();
+
+	private DurabilityMode _mode = DurabilityMode.BATCH;
+
+	private long _groupWindow = 0;
+
+	private Flushable _journal = null;
+
+	private Runnable _rollbackListener = null;
+
+	private Thread _thread = null;
+
+	private volatile boolean _closed = false;
+
+	// how deeply the current thread is nested in begin/end
+	private final ThreadLocal<Integer> _depth = new ThreadLocal<Integer>();
+
+	// the first commit failure met by the changes of the current thread's group
+	private final ThreadLocal<AtomicReference<RuntimeException>> _failure =
+		new ThreadLocal<AtomicReference<RuntimeException>>();
+
+	// guarded by this: commit statistics
+	private long _commits = 0;
+	private long _changes = 0;
+	private long _commitNanos = 0;
+	private long _longestCommitNanos = 0;
+
+	// the most commands run between two commits
+	private final int BATCH_SIZE = 256;
+
+	// tells the writer thread to stop
+	private final Command<Void> STOP = new Command<Void>(null, null);
+
+	/**
+	 * Creates a new DbWriter.
+	 * @param capacity - the number of commands that may be waiting for the writer
+	 * @param containers - the <code>ObjectContainer</code>s to commit
+	 * @param mode - when to commit
+	 * @param groupWindow - with <code>DurabilityMode.GROUP</code>, how long changes
+	 * are collected before they are committed, in miliseconds
+	 */
+	public DbWriter(int capacity, List<ObjectContainer> containers, DurabilityMode mode, long groupWindow) {
+		_queue = new ArrayBlockingQueue<Command<?>>(capacity);
+		_containers.addAll(containers);
+		_mode = mode;
+		_groupWindow = groupWindow;
+	}
+
+	/**
+	 * Sets a journal that is flushed before every commit. Nothing is committed when
+	 * the journal cannot be flushed. Must be called before <code>start</code>.
+	 * @param journal - the journal to flush, may be <code>null</code>
+	 */
+	public void setJournal(Flushable journal) {
+		_journal = journal;
+	}
+
+	/**
+	 * Sets a listener that is run on the writer thread after a failed commit has
+	 * been rolled back. Must be called before <code>start</code>.
+	 * @param listener - the listener, may be <code>null</code>
+	 */
+	public void setRollbackListener(Runnable listener) {
+		_rollbackListener = listener;
+	}
+
+	/**
+	 * Starts the writer thread.
+	 */
+	public void start() {
+		_thread = new Thread(this, "db-writer");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/**
+	 * Runs a command on the writer thread. Outside of <code>begin</code> and
+	 * <code>end</code> this waits until the command has been committed, within
+	 * them only until it has been run. A command issued by another command runs
+	 * straight away, as part of the same batch.
+	 * @param command - the change to make
+	 * @return the result of the command
+	 * @throws IllegalStateException - if the writer has been closed
+	 */
+	public <T> T execute(Callable<T> command) {
+		if (Thread.currentThread() == _thread) {
+			try {
+				return command.call();
+			} catch (RuntimeException ex) {
+				throw ex;
+			} catch (Exception ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+		return enqueue(new Command<T>(command, isBatching() ? _failure.get() : null));
+	}
+
+	/**
+	 * Starts grouping the changes of the current thread. Every call must be matched
+	 * by a call to <code>end</code>; calls may be nested. The group is not atomic,
+	 * some of its changes may be committed before <code>end</code>.
+	 */
+	public void begin() {
+		Integer depth = _depth.get();
+		if (depth == null) {
+			_failure.set(new AtomicReference<RuntimeException>());
+		}
+		_depth.set(depth == null ? 1 : depth + 1);
+	}
+
+	/**
+	 * Tells whether the current thread is grouping its changes, so they are not
+	 * committed one by one.
+	 * @return <code>true</code> between <code>begin</code> and <code>end</code>,
+	 * unless every change is committed on its own anyway
+	 */
+	public boolean isBatching() {
+		return _depth.get() != null && _mode != DurabilityMode.OPERATION;
+	}
+
+	/**
+	 * Stops grouping the changes of the current thread. The outermost call waits
+	 * until every change made since <code>begin</code> has been committed.
+	 * @throws IllegalStateException - if a change made since <code>begin</code>
+	 * could not be committed
+	 */
+	public void end() {
+		Integer depth = _depth.get();
+		if (depth == null) {
+			return;
+		}
+		if (depth > 1) {
+			_depth.set(depth - 1);
+			return;
+		}
+		_depth.remove();
+		AtomicReference<RuntimeException> failure = _failure.get();
+		_failure.remove();
+		if (_mode != DurabilityMode.OPERATION && Thread.currentThread() != _thread && !_closed) {
+			// the commit that covers this empty command covers every change before it
+			enqueue(new Command<Void>(new Callable<Void>() {
+
+				public Void call() {
+					return null;
+				}
+			}, null));
+		}
+		// an earlier commit may have covered, and lost, some of the changes
+		if (failure != null && failure.get() != null) {
+			throw failure.get();
+		}
+	}
+
+	/**
+	 * Stops accepting commands, lets the writer finish the queued ones and waits
+	 * for it to stop.
+	 */
+	public void close() {
+		_closed = true;
+		if (_thread == null) {
+			return;
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				_queue.put(STOP);
+				_thread.join();
+				break;
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		// commands queued after the stop signal are never run
+		failQueued(new IllegalStateException("Database is closed"));
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		LogService.writeMessage("Database writer stopped, " + dumpStats());
+	}
+
+	/**
+	 * Returns a readable summary of the commits made so far.
+	 * @return commit counts and times
+	 */
+	public synchronized String dumpStats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("durability=").append(_mode.getShortName());
+		sb.append(" commits=").append(_commits);
+		sb.append(" changes=").append(_changes);
+		if (_commits > 0) {
+			sb.append(String.format(" changes/commit=%.1f", (double) _changes / _commits));
+			sb.append(String.format(" avg commit=%.2fms", _commitNanos / 1e6 / _commits));
+			sb.append(String.format(" longest commit=%.2fms", _longestCommitNanos / 1e6));
+		}
+		sb.append(" queued=").append(_queue.size());
+		return sb.toString();
+	}
+
+	/**
+	 * Takes commands off the queue and runs them, committing whenever the
+	 * durability mode asks for it. Should anything go wrong outside of the commands
+	 * and commits, the writer stops and fails every command still waiting, so no
+	 * caller waits for it forever.
+	 */
+	public void run() {
+		// commands run but not committed yet
+		List<Command<?>> pending = new ArrayList<Command<?>>();
+		try {
+			process(pending);
+		} catch (Throwable t) {
+			LogService.getLogger(DbWriter.class.getName()).log(Level.SEVERE, null, t);
+			LogService.writeLog(Level.SEVERE, t);
+			_closed = true;
+			rollback();
+			IllegalStateException failure = new IllegalStateException("Database writer stopped", t);
+			for (Command<?> command : pending) {
+				command.fail(failure);
+			}
+			failQueued(failure);
+		}
+	}
+
+	/*
+	 * The loop of the writer thread.
+	 */
+	private void process(List<Command<?>> pending) {
+		// when the oldest waiting caller has to be answered, in GROUP mode
+		long deadline = Long.MAX_VALUE;
+		boolean stop = false;
+		while (!stop) {
+			Command<?> command;
+			try {
+				if (deadline == Long.MAX_VALUE) {
+					command = _queue.take();
+				} else {
+					command = _queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				}
+			} catch (InterruptedException ex) {
+				continue;
+			}
+			if (command == STOP) {
+				stop = true;
+			} else if (command != null) {
+				command.run();
+				pending.add(command);
+				if (!command.isDeferred() && deadline == Long.MAX_VALUE) {
+					deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_groupWindow);
+				}
+			}
+			if (!stop && !isCommitDue(pending, deadline)) {
+				continue;
+			}
+			if (!pending.isEmpty()) {
+				RuntimeException failure = commit(pending.size());
+				if (failure != null) {
+					rollback();
+				}
+				for (Command<?> done : pending) {
+					if (failure != null) {
+						done.fail(failure);
+					}
+					done.done();
+				}
+				pending.clear();
+			}
+			deadline = Long.MAX_VALUE;
+		}
+	}
+
+	/*
+	 * Decides whether the commands run so far are to be committed now.
+	 */
+	private boolean isCommitDue(List<Command<?>> pending, long deadline) {
+		if (pending.isEmpty()) {
+			return false;
+		}
+		if (pending.size() >= BATCH_SIZE) {
+			return true;
+		}
+		if (deadline == Long.MAX_VALUE) {
+			// only deferred changes so far: their threads have not asked to wait yet
+			return false;
+		}
+		switch (_mode) {
+			case OPERATION:
+				return true;
+			case BATCH:
+				// commit once the commands that were waiting have all been run
+				return _queue.isEmpty();
+			default:
+				return System.nanoTime() >= deadline;
+		}
+	}
+
+	/*
+	 * Commits every container.
+	 * @param changes - the number of commands covered by this commit
+	 * @return the exception thrown by a failed commit, or <code>null</code>
+	 */
+	private RuntimeException commit(int changes) {
+		if (_journal != null) {
+			try {
+				_journal.flush();
+			} catch (IOException ex) {
+				LogService.getLogger(DbWriter.class.getName()).log(Level.SEVERE, null, ex);
+				LogService.writeLog(Level.SEVERE, ex);
+				return new IllegalStateException("Cannot flush the journal, nothing was committed", ex);
+			}
+		}
+		long start = System.nanoTime();
+		RuntimeException failure = null;
+		for (ObjectContainer container : _containers) {
+			try {
+				container.commit();
+			} catch (RuntimeException ex) {
+				LogService.getLogger(DbWriter.class.getName()).log(Level.SEVERE, null, ex);
+				LogService.writeLog(Level.SEVERE, ex);
+				failure = ex;
+			} catch (Error err) {
+				LogService.getLogger(DbWriter.class.getName()).log(Level.SEVERE, null, err);
+				LogService.writeLog(Level.SEVERE, err);
+				failure = new IllegalStateException(err);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		synchronized (this) {
+			_commits++;
+			_changes += changes;
+			_commitNanos += elapsed;
+			_longestCommitNanos = Math.max(_longestCommitNanos, elapsed);
+		}
+		return failure;
+	}
+
+	/*
+	 * Throws away the changes made since the last commit, then tells the rollback
+	 * listener. Containers that committed before another one failed keep their
+	 * changes.
+	 */
+	private void rollback() {
+		for (ObjectContainer container : _containers) {
+			try {
+				container.rollback();
+			} catch (Throwable t) {
+				LogService.getLogger(DbWriter.class.getName()).log(Level.SEVERE, null, t);
+				LogService.writeLog(Level.SEVERE, t);
+			}
+		}
+		if (_rollbackListener != null) {
+			try {
+				_rollbackListener.run();
+			} catch (Throwable t) {
+				LogService.getLogger(DbWriter.class.getName()).log(Level.SEVERE, null, t);
+				LogService.writeLog(Level.SEVERE, t);
+			}
+		}
+	}
+
+	/*
+	 * Fails every command still in the queue.
+	 */
+	private void failQueued(RuntimeException failure) {
+		Command<?> left;
+		while ((left = _queue.poll()) != null) {
+			if (left != STOP) {
+				left.fail(failure);
+			}
+		}
+	}
+
+	/*
+	 * Hands a command to the writer and waits for it.
+	 */
+	private <T> T enqueue(Command<T> command) {
+		if (_closed) {
+			throw new IllegalStateException("Database is closed");
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				_queue.put(command);
+				break;
+			} catch (InterruptedException ex) {
+				// a change that was asked for is still made
+				interrupted = true;
+			}
+		}
+		if (_closed && _thread != null && !_thread.isAlive()) {
+			// the writer stopped after we looked; nobody is left to run the command
+			failQueued(new IllegalStateException("Database is closed"));
+		}
+		try {
+			return command.getResult();
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/*
+	 * A change waiting for the writer, together with its outcome. The caller of a
+	 * deferred change is answered as soon as it has been run, otherwise once it
+	 * has been committed. A deferred change that cannot be committed leaves its
+	 * failure with the group it belongs to, for <code>end</code> to report.
+	 */
+	static class Command<T> {
+
+		private final Callable<T> _callable;
+		private final AtomicReference<RuntimeException> _group;
+		private final CountDownLatch _ran = new CountDownLatch(1);
+		private final CountDownLatch _done = new CountDownLatch(1);
+		private volatile T _result = null;
+		private volatile RuntimeException _failure = null;
+
+		Command(Callable<T> callable, AtomicReference<RuntimeException> group) {
+			_callable = callable;
+			_group = group;
+		}
+
+		boolean isDeferred() {
+			return _group != null;
+		}
+
+		void run() {
+			try {
+				_result = _callable.call();
+			} catch (RuntimeException ex) {
+				_failure = ex;
+			} catch (Throwable t) {
+				_failure = new IllegalStateException(t);
+			}
+			_ran.countDown();
+		}
+
+		void fail(RuntimeException ex) {
+			if (_failure == null) {
+				_failure = ex;
+			}
+			if (_group != null) {
+				_group.compareAndSet(null, ex);
+			}
+			_ran.countDown();
+			_done.countDown();
+		}
+
+		void done() {
+			_done.countDown();
+		}
+
+		T getResult() {
+			CountDownLatch latch = isDeferred() ? _ran : _done;
+			boolean interrupted = false;
+			while (true) {
+				try {
+					latch.await();
+					break;
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (_failure != null) {
+				throw _failure;
+			}
+			return _result;
+		}
+	}
+}
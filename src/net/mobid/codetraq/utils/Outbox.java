@@ -0,0 +1,618 @@
+/*
+ * Copyright 2011 Ronald Kurniawan.
+ *
+ * This file is part of CodeTraq.
+ *
+ * CodeTraq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CodeTraq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CodeTraq. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.mobid.codetraq.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+import net.mobid.codetraq.ConnectionType;
+import net.mobid.codetraq.persistence.MessageDTO;
+import net.mobid.codetraq.persistence.UserDTO;
+
+/**
+ * This class keeps the messages waiting to be sent. It is a journal made of
+ * segment files in the "outbox" directory, which are only ever appended to: a
+ * new message, a failed attempt to send one and a sent message each add a small
+ * record to the newest segment. Nothing is ever updated or deleted in place, so
+ * the files do not fragment, and writing a message costs one sequential write.
+ * <p>When the outbox is opened, the segments are mapped into memory and replayed
+ * to find the messages still waiting. A record that was only partly written when
+ * the daemon died is recognised by its checksum and dropped.</p>
+ * <p>A segment whose messages have all been sent is deleted. Segments are deleted
+ * oldest first, so the records about a message are never deleted before the
+ * message itself. When the oldest segment only holds a few waiting messages, for
+ * example ones that keep failing, they are copied to the newest segment so the
+ * old one can go.</p>
+ *
+ * @author Ronald Kurniawan
+ * @version 0.1
+ */
+public class Outbox implements Flushable {
+
+	private File _directory = null;
+
+	// oldest first; the last one is written to
+	private LinkedList<Segment> _segments = new LinkedList<Segment>();
+
+	private FileChannel _channel = null;
+
+	// message id -> waiting message, oldest first
+	private Map<Long, Entry> _pending = new LinkedHashMap<Long, Entry>();
+
+	// server, timestamp, revision and recipient -> message id
+	private Map<String, Long> _keys = new HashMap<String, Long>();
+
+	private long _nextId = 1;
+
+	// segments are numbered on their own, independent of the message ids
+	private long _nextSegment = 1;
+
+	private boolean _syncEveryRecord = false;
+
+	private boolean _dirty = false;
+
+	private boolean _compacting = false;
+
+	private final byte ENQUEUE = 1;
+	private final byte ACK = 2;
+	private final byte RETRY = 3;
+
+	// a new segment is started once the current one is this big
+	private final long SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	// the oldest segment is emptied by copying its messages if it holds at most this many
+	private final int COPY_LIMIT = 64;
+
+	private final String SEGMENT_SUFFIX = ".seg";
+
+	/**
+	 * Opens the outbox in a directory, creating the directory if needed, and
+	 * replays its segments.
+	 * @param directory - the directory holding the segment files
+	 * @param syncEveryRecord - whether every record is flushed to disk as soon as it
+	 * is written, instead of on <code>sync</code>
+	 * @throws IOException - if the segments cannot be read or written
+	 */
+	public Outbox(File directory, boolean syncEveryRecord) throws IOException {
+		_directory = directory;
+		_syncEveryRecord = syncEveryRecord;
+		if (!_directory.exists() && !_directory.mkdirs()) {
+			throw new IOException("Cannot create " + _directory.getAbsolutePath());
+		}
+		replay();
+	}
+
+	/**
+	 * Adds a message to the outbox, unless a message for the same revision, server
+	 * and recipient is already waiting.
+	 * @param message - a <code>MessageDTO</code> object
+	 * @return <code>true</code> if the message was added, <code>false</code> if it is
+	 * a duplicate
+	 * @throws IOException - if the record cannot be written, or the outbox is closed
+	 */
+	public synchronized boolean enqueue(MessageDTO message) throws IOException {
+		String key = getKey(message);
+		if (_keys.containsKey(key)) {
+			return false;
+		}
+		long id = _nextId++;
+		append(ENQUEUE, id, message);
+		Entry entry = new Entry(id, message, _segments.getLast());
+		entry.segment.live++;
+		_pending.put(id, entry);
+		_keys.put(key, id);
+		return true;
+	}
+
+	/**
+	 * Marks a message as sent and removes it from the outbox.
+	 * @param message - a <code>MessageDTO</code> object
+	 * @return <code>true</code> if the message was waiting, <code>false</code> otherwise
+	 * @throws IOException - if the record cannot be written, or the outbox is closed
+	 */
+	public synchronized boolean ack(MessageDTO message) throws IOException {
+		Long id = _keys.get(getKey(message));
+		if (id == null) {
+			return false;
+		}
+		append(ACK, id, null);
+		remove(id);
+		reclaimSegments();
+		return true;
+	}
+
+	/**
+	 * Records a failed attempt to send a message.
+	 * @param message - a <code>MessageDTO</code> object
+	 * @return <code>true</code> if the message was waiting, <code>false</code> otherwise
+	 * @throws IOException - if the record cannot be written, or the outbox is closed
+	 */
+	public synchronized boolean retry(MessageDTO message) throws IOException {
+		Long id = _keys.get(getKey(message));
+		if (id == null) {
+			return false;
+		}
+		append(RETRY, id, null);
+		_pending.get(id).message.appendRetries();
+		return true;
+	}
+
+	/**
+	 * Returns the messages waiting to be sent, oldest first.
+	 * @return a <code>List</code> of <code>MessageDTO</code> objects
+	 */
+	public synchronized List<MessageDTO> getPending() {
+		List<MessageDTO> list = new ArrayList<MessageDTO>(_pending.size());
+		for (Entry entry : _pending.values()) {
+			list.add(entry.message);
+		}
+		return list;
+	}
+
+	/**
+	 * Returns a waiting message of a server with a given timestamp.
+	 * @param serverName - server name which the message refers to
+	 * @param timestamp - the timestamp of the message
+	 * @return a <code>MessageDTO</code> object, or <code>null</code> if there is none
+	 */
+	public synchronized MessageDTO find(String serverName, long timestamp) {
+		for (Entry entry : _pending.values()) {
+			if (entry.message.getTimestamp() == timestamp
+				&& isSame(entry.message.getServerName(), serverName)) {
+				return entry.message;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of messages waiting to be sent.
+	 * @return number of waiting messages
+	 */
+	public synchronized int size() {
+		return _pending.size();
+	}
+
+	/**
+	 * Returns the number of segment files.
+	 * @return number of segments
+	 */
+	public synchronized int getSegmentCount() {
+		return _segments.size();
+	}
+
+	/**
+	 * Flushes the records written since the last call to disk.
+	 * @throws IOException - if the segment cannot be flushed
+	 */
+	public synchronized void sync() throws IOException {
+		if (_dirty && _channel != null) {
+			_channel.force(false);
+			_dirty = false;
+		}
+	}
+
+	/**
+	 * Flushes the records written since the last call to disk. Same as
+	 * <code>sync</code>.
+	 * @throws IOException - if the segment cannot be flushed
+	 */
+	public void flush() throws IOException {
+		sync();
+	}
+
+	/**
+	 * Flushes and closes the current segment. Records written afterwards fail with
+	 * an <code>IOException</code>.
+	 */
+	public synchronized void close() {
+		if (_channel == null) {
+			return;
+		}
+		try {
+			sync();
+			_channel.close();
+		} catch (IOException ex) {
+			LogService.getLogger(Outbox.class.getName()).log(Level.SEVERE, null, ex);
+			LogService.writeLog(Level.SEVERE, ex);
+		}
+		_channel = null;
+	}
+
+	/*
+	 * Reads every segment, oldest first, to find the waiting messages, then opens
+	 * the newest segment for writing.
+	 */
+	private void replay() throws IOException {
+		File[] files = _directory.listFiles();
+		List<File> segmentFiles = new ArrayList<File>();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(SEGMENT_SUFFIX)) {
+					segmentFiles.add(file);
+				}
+			}
+		}
+		// the names are zero padded sequence numbers, so they sort in the order they were written
+		File[] sorted = segmentFiles.toArray(new File[segmentFiles.size()]);
+		Arrays.sort(sorted);
+		long validLength = 0;
+		for (File file : sorted) {
+			_nextSegment = Math.max(_nextSegment, getSequence(file) + 1);
+			Segment segment = new Segment(file);
+			_segments.add(segment);
+			validLength = replay(segment);
+		}
+		if (_segments.isEmpty()) {
+			startSegment();
+		} else {
+			Segment last = _segments.getLast();
+			RandomAccessFile raf = new RandomAccessFile(last.file, "rw");
+			_channel = raf.getChannel();
+			if (validLength < _channel.size()) {
+				LogService.writeMessage("Outbox: dropping a partly written record at the end of " + last.file.getName());
+				_channel.truncate(validLength);
+			}
+			_channel.position(validLength);
+		}
+		reclaimSegments();
+		LogService.writeMessage("Outbox: " + _pending.size() + " message(s) waiting in " + _segments.size() + " segment(s)");
+	}
+
+	/*
+	 * Replays the records of one segment.
+	 * @return the length of the segment up to the last complete record
+	 */
+	private long replay(Segment segment) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(segment.file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() == 0) {
+				return 0;
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			CRC32 crc = new CRC32();
+			while (buffer.remaining() >= 8) {
+				int start = buffer.position();
+				int length = buffer.getInt();
+				int checksum = buffer.getInt();
+				if (length <= 0 || length > buffer.remaining()) {
+					return start;
+				}
+				byte[] body = new byte[length];
+				buffer.get(body);
+				crc.reset();
+				crc.update(body, 0, length);
+				if ((int) crc.getValue() != checksum) {
+					return start;
+				}
+				apply(ByteBuffer.wrap(body), segment);
+			}
+			return buffer.position();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Applies one record read from a segment.
+	 */
+	private void apply(ByteBuffer body, Segment segment) {
+		byte type = body.get();
+		long id = body.getLong();
+		_nextId = Math.max(_nextId, id + 1);
+		if (type == ENQUEUE) {
+			MessageDTO message = readMessage(body);
+			// a message copied out of an older segment replaces the older copy
+			remove(id);
+			Entry entry = new Entry(id, message, segment);
+			segment.live++;
+			_pending.put(id, entry);
+			_keys.put(getKey(message), id);
+		} else if (type == ACK) {
+			remove(id);
+		} else if (type == RETRY) {
+			Entry entry = _pending.get(id);
+			if (entry != null) {
+				entry.message.appendRetries();
+			}
+		}
+	}
+
+	/*
+	 * Takes a message out of the waiting messages.
+	 */
+	private void remove(long id) {
+		Entry entry = _pending.remove(id);
+		if (entry != null) {
+			entry.segment.live--;
+			_keys.remove(getKey(entry.message));
+		}
+	}
+
+	/*
+	 * Writes one record to the current segment, starting a new segment first if
+	 * the current one is full.
+	 */
+	private void append(byte type, long id, MessageDTO message) throws IOException {
+		if (_channel == null) {
+			throw new IOException("Outbox is closed");
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		out.writeLong(id);
+		if (message != null) {
+			writeMessage(out, message);
+		}
+		out.flush();
+		byte[] body = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		ByteBuffer record = ByteBuffer.allocate(8 + body.length);
+		record.putInt(body.length);
+		record.putInt((int) crc.getValue());
+		record.put(body);
+		record.flip();
+		if (!_compacting && _channel.size() > 0 && _channel.size() + record.remaining() > SEGMENT_SIZE) {
+			rollSegment();
+		}
+		while (record.hasRemaining()) {
+			_channel.write(record);
+		}
+		_dirty = true;
+		if (_syncEveryRecord) {
+			sync();
+		}
+	}
+
+	/*
+	 * Closes the current segment and starts a new one. Then tries to get rid of
+	 * the oldest segments.
+	 */
+	private void rollSegment() throws IOException {
+		sync();
+		_channel.close();
+		startSegment();
+		reclaimSegments();
+	}
+
+	/*
+	 * Creates a new, empty segment and opens it for writing.
+	 */
+	private void startSegment() throws IOException {
+		File file = new File(_directory, String.format("%020d", _nextSegment++) + SEGMENT_SUFFIX);
+		if (file.exists()) {
+			throw new IOException("Outbox: segment " + file.getName() + " already exists");
+		}
+		Segment segment = new Segment(file);
+		_segments.add(segment);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		_channel = raf.getChannel();
+	}
+
+	/*
+	 * Returns the sequence number a segment file is named after.
+	 */
+	private long getSequence(File file) throws IOException {
+		String name = file.getName();
+		try {
+			return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException ex) {
+			throw new IOException("Outbox: unexpected segment name " + name);
+		}
+	}
+
+	/*
+	 * Deletes the oldest segments for as long as they hold no waiting messages.
+	 * When the oldest segment only holds a few waiting messages, they are copied to
+	 * the current segment first. The current segment is never deleted.
+	 */
+	private void reclaimSegments() throws IOException {
+		while (_segments.size() > 1) {
+			Segment oldest = _segments.getFirst();
+			if (oldest.live > COPY_LIMIT) {
+				break;
+			}
+			if (oldest.live > 0) {
+				copyToCurrentSegment(oldest);
+			}
+			if (!oldest.file.delete() && oldest.file.exists()) {
+				// still mapped on some platforms; try again later
+				LogService.writeMessage("Outbox: cannot delete " + oldest.file.getName() + " yet");
+				break;
+			}
+			_segments.removeFirst();
+		}
+	}
+
+	/*
+	 * Copies the messages still waiting in a segment to the current segment.
+	 */
+	private void copyToCurrentSegment(Segment segment) throws IOException {
+		Segment current = _segments.getLast();
+		_compacting = true;
+		try {
+			for (Entry entry : _pending.values()) {
+				if (entry.segment == segment) {
+					append(ENQUEUE, entry.id, entry.message);
+					entry.segment = current;
+					segment.live--;
+					current.live++;
+				}
+			}
+		} finally {
+			_compacting = false;
+		}
+		// the copies have to be on disk before the originals go
+		sync();
+	}
+
+	/*
+	 * Writes the fields of a message.
+	 */
+	private void writeMessage(DataOutputStream out, MessageDTO message) throws IOException {
+		out.writeLong(message.getTimestamp());
+		writeString(out, message.getAuthor());
+		writeString(out, message.getSubject());
+		writeString(out, message.getServerName());
+		writeString(out, message.getRevisionId());
+		writeString(out, message.getMessage());
+		out.writeInt(message.getFiles().size());
+		for (String file : message.getFiles()) {
+			writeString(out, file);
+		}
+		out.writeInt(message.getRetries());
+		UserDTO recipient = message.getRecipient();
+		out.writeBoolean(recipient != null);
+		if (recipient != null) {
+			writeString(out, recipient.getNickname());
+			writeString(out, recipient.getId());
+			writeString(out, recipient.getNotificationType() == null ? null : recipient.getNotificationType().name());
+			writeString(out, recipient.getNotificationId());
+		}
+	}
+
+	/*
+	 * Reads the fields of a message written by <code>writeMessage</code>.
+	 */
+	private MessageDTO readMessage(ByteBuffer in) {
+		MessageDTO message = new MessageDTO();
+		message.setTimestamp(in.getLong());
+		message.setAuthor(readString(in));
+		message.setSubject(readString(in));
+		message.setServerName(readString(in));
+		message.setRevisionId(readString(in));
+		message.setMessage(readString(in));
+		int files = in.getInt();
+		List<String> list = new ArrayList<String>(files);
+		for (int i = 0; i < files; i++) {
+			list.add(readString(in));
+		}
+		message.setFiles(list);
+		int retries = in.getInt();
+		for (int i = 0; i < retries; i++) {
+			message.appendRetries();
+		}
+		if (in.get() != 0) {
+			UserDTO recipient = new UserDTO();
+			recipient.setNickname(readString(in));
+			recipient.setId(readString(in));
+			String type = readString(in);
+			if (type != null) {
+				recipient.setNotificationType(ConnectionType.valueOf(type));
+			}
+			recipient.setNotificationId(readString(in));
+			message.setRecipient(recipient);
+		}
+		return message;
+	}
+
+	/*
+	 * Writes a string that may be null.
+	 */
+	private void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/*
+	 * Reads a string written by <code>writeString</code>.
+	 */
+	private String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/*
+	 * Returns the key that identifies a message: the same revision of the same
+	 * server for the same recipient.
+	 */
+	private String getKey(MessageDTO message) {
+		return message.getServerName() + "\n" + message.getTimestamp() + "\n" + message.getRevisionId()
+			+ "\n" + (message.getRecipient() == null ? null : message.getRecipient().getId());
+	}
+
+	/*
+	 * Compares two strings, either of which may be null.
+	 */
+	private boolean isSame(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/*
+	 * A segment file and the number of waiting messages written to it.
+	 */
+	static class Segment {
+
+		final File file;
+		int live = 0;
+
+		Segment(File file) {
+			this.file = file;
+		}
+	}
+
+	/*
+	 * A waiting message and the segment holding it.
+	 */
+	static class Entry {
+
+		final long id;
+		final MessageDTO message;
+		Segment segment;
+
+		Entry(long id, MessageDTO message, Segment segment) {
+			this.id = id;
+			this.message = message;
+			this.segment = segment;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2011 Ronald Kurniawan.
+ *
+ * This file is part of CodeTraq.
+ *
+ * CodeTraq is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CodeTraq is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CodeTraq. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.mobid.codetraq.utils;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import net.mobid.codetraq.persistence.ServerDTO;
+import net.mobid.codetraq.persistence.UserDTO;
+
+/**
+ * This class indexes which users subscribe to which servers. It is built once
+ * from the configuration file and answers, without any searching, who should be
+ * notified about a server and which servers a user follows. One server (and so
+ * one poll and one local copy) serves every one of its subscribers.
+ *
+ * @author Ronald Kurniawan
+ * @version 0.1
+ */
+public class SubscriptionIndex {
+
+	// server address -> server
+	private Map<String, ServerDTO> _servers = new HashMap<String, ServerDTO>();
+
+	// server address -> subscribers
+	private Map<String, Set<UserDTO>> _subscribers = new HashMap<String, Set<UserDTO>>();
+
+	// user id -> subscribed servers
+	private Map<String, Set<ServerDTO>> _subscriptions = new HashMap<String, Set<ServerDTO>>();
+
+	/**
+	 * Creates a new SubscriptionIndex. Subscribers that are not listed as users
+	 * are reported and left out.
+	 * @param servers - a <code>List</code> of <code>ServerDTO</code> objects
+	 * @param users - a <code>List</code> of <code>UserDTO</code> objects
+	 */
+	public SubscriptionIndex(List<ServerDTO> servers, List<UserDTO> users) {
+		Map<String, UserDTO> usersById = new HashMap<String, UserDTO>();
+		for (UserDTO user : users) {
+			usersById.put(user.getId(), user);
+		}
+		for (ServerDTO server : servers) {
+			_servers.put(server.getServerAddress(), server);
+			Set<UserDTO> subscribers = new LinkedHashSet<UserDTO>();
+			_subscribers.put(server.getServerAddress(), subscribers);
+			for (String id : server.getSubscriberIds()) {
+				UserDTO user = usersById.get(id);
+				if (user == null) {
+					System.out.printf("Cannot find user %s%n.", id);
+					LogService.writeMessage("Cannot find user " + id);
+					continue;
+				}
+				subscribers.add(user);
+				Set<ServerDTO> subscriptions = _subscriptions.get(id);
+				if (subscriptions == null) {
+					subscriptions = new LinkedHashSet<ServerDTO>();
+					_subscriptions.put(id, subscriptions);
+				}
+				subscriptions.add(server);
+			}
+		}
+	}
+
+	/**
+	 * Returns the server with the specified address.
+	 * @param address - server URL
+	 * @return a <code>ServerDTO</code> object, or <code>null</code> if the server is unknown
+	 */
+	public ServerDTO getServer(String address) {
+		return _servers.get(address);
+	}
+
+	/**
+	 * Returns the addresses of all indexed servers.
+	 * @return a read-only <code>Collection</code> of server URLs
+	 */
+	public Collection<String> getServerAddresses() {
+		return Collections.unmodifiableCollection(_servers.keySet());
+	}
+
+	/**
+	 * Returns every user subscribed to a server.
+	 * @param address - server URL
+	 * @return a read-only <code>Set</code> of <code>UserDTO</code> objects, empty if
+	 * the server is unknown
+	 */
+	public Set<UserDTO> getSubscribers(String address) {
+		Set<UserDTO> subscribers = _subscribers.get(address);
+		if (subscribers == null) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(subscribers);
+	}
+
+	/**
+	 * Returns every server a user is subscribed to.
+	 * @param userId - user ID
+	 * @return a read-only <code>Set</code> of <code>ServerDTO</code> objects, empty if
+	 * the user has no subscriptions
+	 */
+	public Set<ServerDTO> getServers(String userId) {
+		Set<ServerDTO> subscriptions = _subscriptions.get(userId);
+		if (subscriptions == null) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(subscriptions);
+	}
+}
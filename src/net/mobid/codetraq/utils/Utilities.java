@@ -19,6 +19,8 @@
 package net.mobid.codetraq.utils;
 
 import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.Calendar;
 import java.util.List;
 import java.util.logging.Level;
@@ -146,6 +148,48 @@ public class Utilities {
 		return true;
 	}
 
+	/**
+	 * Reads an optional numeric attribute from a DOM Node. If the attribute is
+	 * missing or is not a number, the default value is returned.
+	 * @param node - The <code>Node</code> holding the attribute
+	 * @param name - attribute name
+	 * @param defaultValue - value to return if the attribute is missing or invalid
+	 * @return the attribute value as an integer
+	 */
+	public static int getIntAttribute(Node node, String name, int defaultValue) {
+		Node attribute = node.getAttributes().getNamedItem(name);
+		if (attribute == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(attribute.getTextContent().trim());
+		} catch (NumberFormatException nfe) {
+			System.out.printf("Attribute %s should be a number, using default value %d.%n", name, defaultValue);
+			LogService.writeLog(Level.WARNING, nfe);
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Reads an optional numeric attribute from a DOM Node that must not be smaller
+	 * than a minimum. If the attribute is missing, is not a number or is too small,
+	 * the default value is returned.
+	 * @param node - The <code>Node</code> holding the attribute
+	 * @param name - attribute name
+	 * @param defaultValue - value to return if the attribute is missing or invalid
+	 * @param minValue - the smallest valid value
+	 * @return the attribute value as an integer
+	 */
+	public static int getIntAttribute(Node node, String name, int defaultValue, int minValue) {
+		int value = getIntAttribute(node, name, defaultValue);
+		if (value < minValue) {
+			System.out.printf("Attribute %s should be at least %d, using default value %d. Please review your configuration file.%n",
+				name, minValue, defaultValue);
+			return defaultValue;
+		}
+		return value;
+	}
+
 	/**
 	 * Creates a directory to hold all GIT repositories for the application.
 	 * @return <code>true</code> if directory is successfully created, <code>false</code>
@@ -217,4 +261,31 @@ public class Utilities {
 		return isHex;
 	}
 
+	/**
+	 * Returns the host part of a repository URL, including the port if one is
+	 * given. User names are left out, so different accounts on one server share
+	 * the same host. Both regular URLs and scp-like git addresses
+	 * (user@host:path) are understood.
+	 * @param address - repository URL
+	 * @return host name (and port) in lower case, or the whole address if no host
+	 * can be found
+	 */
+	public static String getHostAuthority(String address) {
+		try {
+			URI uri = new URI(address);
+			if (uri.getHost() != null) {
+				String host = uri.getHost().toLowerCase();
+				return uri.getPort() > 0 ? host + ":" + uri.getPort() : host;
+			}
+		} catch (URISyntaxException ex) {
+			// not a regular URL, might be a scp-like git address
+		}
+		int at = address.indexOf('@');
+		int colon = address.indexOf(':', at + 1);
+		if (colon > at + 1 && !address.contains("://")) {
+			return address.substring(at + 1, colon).toLowerCase();
+		}
+		return address.toLowerCase();
+	}
+
 }